@@ -0,0 +1,133 @@
+package CalibrationGridPoints;
+
+import config.RowBands;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+
+public class AdaptiveThreshold {
+
+    // thresholds a gray image against the statistics of the (2*radius + 1)^2 box around each pixel,
+    // read from summed-area tables in constant time whatever the radius; boxes are clipped at the border
+    //
+    // the plain sums are kept in ints and only ever differenced, so they may wrap around: a box sum is
+    // exact as long as it fits in 32 unsigned bits, which holds for any box of 8-bit pixels up to
+    // 4096 x 4096; the squared sums are kept in longs
+
+    public static final int meanOffset = 0;
+    public static final int sauvola = 1;
+
+    // Sauvola's dynamic range of the standard deviation for 8-bit images
+    static final double sauvolaRange = 128.0;
+
+    public static int parseMode(String name)
+    {
+        if (name.equals("mean")) {
+            return meanOffset;
+        }
+        if (name.equals("sauvola")) {
+            return sauvola;
+        }
+        throw new IllegalArgumentException("Unknown threshold mode: " + name);
+    }
+
+    public static BufferedImage threshold(BufferedImage grayImage, int mode, int radius, double offset, double k)
+    {
+        // mean mode: white where gray > mean + offset
+        // sauvola mode: white where gray > mean*(1 + k*(std/128 - 1))
+        if (radius < 1 || radius > 2047) {
+            throw new IllegalArgumentException("The threshold radius must be between 1 and 2047, found " + radius);
+        }
+        int nCols = grayImage.getWidth();
+        int nRows = grayImage.getHeight();
+        Raster raster = grayImage.getRaster();
+        int stride = nCols + 1;
+
+        // row prefix sums in parallel, then column prefix sums in parallel column strips
+        int[] sums = new int[(nRows + 1)*stride];
+        long[] squareSums = (mode == sauvola) ? new long[(nRows + 1)*stride] : null;
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int[] rowGray = new int[nCols];
+            for (int row = rowStart; row < rowStop; row++) {
+                readRow(raster, row, rowGray);
+                int index = (row + 1)*stride + 1;
+                int sum = 0;
+                long squareSum = 0;
+                for (int col = 0; col < nCols; col++, index++) {
+                    int gray = rowGray[col];
+                    sum += gray;
+                    sums[index] = sum;
+                    if (squareSums != null) {
+                        squareSum += gray*gray;
+                        squareSums[index] = squareSum;
+                    }
+                }
+            }
+        });
+        RowBands.forEach(nCols, (colStart, colStop) -> {
+            for (int row = 1; row <= nRows; row++) {
+                int index = row*stride + colStart + 1;
+                for (int col = colStart; col < colStop; col++, index++) {
+                    sums[index] += sums[index - stride];
+                    if (squareSums != null) {
+                        squareSums[index] += squareSums[index - stride];
+                    }
+                }
+            }
+        });
+
+        // then each pixel against its box, written straight into the output bytes
+        BufferedImage bwImage = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] bwData = ((DataBufferByte) bwImage.getRaster().getDataBuffer()).getData();
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int[] rowGray = new int[nCols];
+            for (int row = rowStart; row < rowStop; row++) {
+                readRow(raster, row, rowGray);
+                int top = Math.max(row - radius, 0)*stride;
+                int bottom = (Math.min(row + radius, nRows - 1) + 1)*stride;
+                int boxRows = bottom/stride - top/stride;
+                for (int col = 0; col < nCols; col++) {
+                    int left = Math.max(col - radius, 0);
+                    int right = Math.min(col + radius, nCols - 1) + 1;
+                    double area = boxRows*(right - left);
+                    long sum = Integer.toUnsignedLong(sums[bottom + right] - sums[bottom + left] - sums[top + right] + sums[top + left]);
+                    double mean = sum/area;
+                    double threshold;
+                    if (squareSums == null) {
+                        threshold = mean + offset;
+                    }
+                    else {
+                        long squareSum = squareSums[bottom + right] - squareSums[bottom + left] - squareSums[top + right] + squareSums[top + left];
+                        double std = Math.sqrt(Math.max(squareSum/area - mean*mean, 0));
+                        threshold = mean*(1 + k*(std/sauvolaRange - 1));
+                    }
+                    bwData[row*nCols + col] = (rowGray[col] > threshold) ? (byte) 255 : 0;
+                }
+            }
+        });
+        return bwImage;
+    }
+
+    static void readRow(Raster raster, int row, int[] rowGray)
+    {
+        // straight from the bytes for 8-bit gray images, otherwise the first band through the raster
+        int nCols = rowGray.length;
+        if (raster.getDataBuffer() instanceof DataBufferByte && raster.getNumBands() == 1 &&
+            raster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int start = sampleModel.getOffset(raster.getMinX() - raster.getSampleModelTranslateX(),
+                                              raster.getMinY() + row - raster.getSampleModelTranslateY()) +
+                        raster.getDataBuffer().getOffset();
+            int step = sampleModel.getPixelStride();
+            for (int col = 0, index = start; col < nCols; col++, index += step) {
+                rowGray[col] = data[index] & 0xFF;
+            }
+        }
+        else {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + row, nCols, 1, 0, rowGray);
+        }
+    }
+
+}
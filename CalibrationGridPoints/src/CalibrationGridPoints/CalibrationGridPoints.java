@@ -1,7 +1,7 @@
 package CalibrationGridPoints;
 
 import config.Util;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -49,29 +49,39 @@ public class CalibrationGridPoints {
         String grayImgName = (new File(grayImgDirPath)).list()[0];
         BufferedImage grayImage = ImageUtil.load(grayImgDirPath, grayImgName);
         
-        // enumerate all the camera points
+        // enumerate the camera points, only the masked ones when the phase stage wrote a mask
         System.out.println("Computing camera points: Please wait ...");
         int nCols = grayImage.getWidth();
         int nRows = grayImage.getHeight();
-        List<Point2D.Double> cameraPts = new ArrayList<>(nCols*nRows);
-        for (double row = 0; row < nRows; row++)
+        ValidityMask mask = loadMask(config, baseDirPath);
+        List<Point2D.Double> cameraPts;
+        if (mask != null)
         {
-            for (double col = 0; col < nCols; col++)
+            if (mask.getWidth() != nCols || mask.getHeight() != nRows)
             {
-                cameraPts.add(new Point2D.Double(col, row));
+                throw new IllegalArgumentException("The mask doesn't match the size of the gray image");
+            }
+            List<Point2D.Double> validPts = new ArrayList<>(mask.countValid());
+            mask.forEachValid((row, col) -> validPts.add(new Point2D.Double(col, row)));
+            cameraPts = validPts;
+            System.out.println("Using " + cameraPts.size() + " of " + nCols*nRows + " pixels");
+        }
+        else
+        {
+            cameraPts = new ArrayList<>(nCols*nRows);
+            for (double row = 0; row < nRows; row++)
+            {
+                for (double col = 0; col < nCols; col++)
+                {
+                    cameraPts.add(new Point2D.Double(col, row));
+                }
             }
         }
         
         // Compute the projector points 
         System.out.println("Computing projector points: Please wait ...");
-        String hPhaseMapPath = baseDirPath + "\\" +
-                               config.selectSingleNode("/config/folders/phaseMap").getText() + "\\" +
-                               config.selectSingleNode("/config/files/horizPhaseMapData").getText();
-        List<List<Double>> hPhaseMap = CSV.loadDoubleMatrix(hPhaseMapPath);        
-        String vPhaseMapPath = baseDirPath + "\\" +
-                               config.selectSingleNode("/config/folders/phaseMap").getText() + "\\" +
-                               config.selectSingleNode("/config/files/vertPhaseMapData").getText();
-        List<List<Double>> vPhaseMap = CSV.loadDoubleMatrix(vPhaseMapPath);          
+        PhaseMapFile hPhaseMap = loadPhaseMap(config, baseDirPath, "horizPhaseMapBinary", "horizPhaseMap.bin", "horizPhaseMapData");
+        PhaseMapFile vPhaseMap = loadPhaseMap(config, baseDirPath, "vertPhaseMapBinary", "vertPhaseMap.bin", "vertPhaseMapData");
         Double waveNumberX = 2*Math.PI/Double.parseDouble(config.selectSingleNode("/config/structuredLight/minHorizWaveLength").getText());
         Double waveNumberY = 2*Math.PI/Double.parseDouble(config.selectSingleNode("/config/structuredLight/minVertWaveLength").getText());
         List<Point2D.Double> projectorPoints = PhaseMapUtils.computePointsAt(cameraPts, hPhaseMap, vPhaseMap, waveNumberX, waveNumberY);
@@ -84,6 +94,128 @@ public class CalibrationGridPoints {
         CSV.saveDoubleMatrix(mergedList, baseDirPath + "\\" + matchesDir, matchPointsName, false);        
     }
     
+    static Rectangle findTargetRegion(BufferedImage grayImage, int pyramidLevels, int mode, int windowSize,
+                                      int offset, double sauvolaK, int nDots)
+    {
+        // threshold and label a downsampled copy, then take the bounds of the black region with the
+        // designed N holes back to full resolution, with a margin wide enough for the threshold window
+        int factor = 1 << pyramidLevels;
+        BufferedImage coarseImage = ImageUtil.downsample(grayImage, factor);
+        int coarseWindow = Math.max(windowSize/factor, 1);
+        BufferedImage coarseBW = AdaptiveThreshold.threshold(coarseImage, mode, coarseWindow, offset, sauvolaK);
+        Components components = new Components(coarseBW);
+        components.findAllComponents();
+        int nComponents = components.getComponentCount();
+        int[] holeCounts = new int[nComponents];
+        for (int i = 0; i < nComponents; i++) {
+            if (!components.isForeground(i) && components.getParent(i) >= 0) {
+                holeCounts[components.getParent(i)] += 1;
+            }
+        }
+        Rectangle frame = new Rectangle(0, 0, grayImage.getWidth(), grayImage.getHeight());
+        for (int i = 0; i < nComponents; i++) {
+            if (holeCounts[i] == nDots) {
+                Rectangle bounds = components.getBounds(i);
+                int margin = windowSize + factor;
+                Rectangle roi = new Rectangle(bounds.x*factor - margin, bounds.y*factor - margin,
+                                              bounds.width*factor + 2*margin, bounds.height*factor + 2*margin);
+                return roi.intersection(frame);
+            }
+        }
+        
+        // the dots may be too small for the coarse level, the whole frame then
+        System.out.println("The target was not found on the coarser level, using the whole frame");
+        return frame;
+    }
+    
+    static List<Point2D.Double> findContourCenters(BufferedImage bwImage, Rectangle roi, int nDots, String folder, String imageName)
+    {
+        // Find the outerContours
+        System.out.println("Looking for contours: Please wait ...");
+        Contours contours = new Contours(bwImage);
+        contours.findAllContours();
+        
+        // Save the contour image
+        System.out.println("Saving the contour image: Please wait ...");
+        ImageUtil.save(contours.drawContours(), folder, imageName);
+        
+        // Find the set of designed N inner contours
+        int[] innerContours = null;
+        for (int i = 0; i < contours.getContourCount(); i++) {
+            if (contours.isHole(i)) {
+                continue;
+            }
+            int[] holes = contours.getHoles(i);
+            if (holes.length == nDots)
+            {
+                innerContours = holes;
+                break;
+            }
+        }
+        if (innerContours == null)
+        {
+            throw new RuntimeException("Can't find the correct number of inner contours");
+        }
+        
+        // Find the contour centers, back in full frame coordinates
+        List<Point2D.Double> centersCamera = new ArrayList<>();
+        for (int contour: innerContours)
+        {
+            Point2D.Double center = ContourUtils.findContourCenter(contours.getContour(contour));
+            centersCamera.add(new Point2D.Double(center.x + roi.x, center.y + roi.y));
+        }
+        return centersCamera;
+    }
+    
+    static List<Point2D.Double> findComponentCenters(BufferedImage bwImage, BufferedImage grayImage, Rectangle roi,
+                                                     int nDots, String folder, String imageName)
+    {
+        // Label the black and white regions
+        System.out.println("Labeling the components: Please wait ...");
+        Components components = new Components(bwImage, grayImage);
+        components.findAllComponents();
+        
+        // Save the component image
+        System.out.println("Saving the component image: Please wait ...");
+        ImageUtil.save(components.drawComponents(), folder, imageName);
+        
+        // Find the black region with the designed N holes
+        int nComponents = components.getComponentCount();
+        int[] holeCounts = new int[nComponents];
+        for (int i = 0; i < nComponents; i++) {
+            if (!components.isForeground(i) && components.getParent(i) >= 0) {
+                holeCounts[components.getParent(i)] += 1;
+            }
+        }
+        int[] holes = null;
+        for (int i = 0; i < nComponents; i++) {
+            if (holeCounts[i] == nDots)
+            {
+                holes = components.getHoles(i);
+                break;
+            }
+        }
+        if (holes == null)
+        {
+            throw new RuntimeException("Can't find the correct number of holes");
+        }
+        
+        // The hole centers are their intensity weighted centroids, saved with the fitted ellipses,
+        // both back in full frame coordinates
+        List<Point2D.Double> centersCamera = new ArrayList<>();
+        double[][] ellipses = new double[holes.length][];
+        for (int i = 0; i < holes.length; i++)
+        {
+            Point2D.Double center = components.getWeightedCentroid(holes[i]);
+            centersCamera.add(new Point2D.Double(center.x + roi.x, center.y + roi.y));
+            ellipses[i] = components.getEllipse(holes[i]);
+            ellipses[i][0] += roi.x;
+            ellipses[i][1] += roi.y;
+        }
+        CSV.saveDoubleMatrix(ellipses, folder, "ellipses.csv");
+        return centersCamera;
+    }
+    
     public final void findCalibPoints(Element config, String baseDirPath, double Z) {
         // Load the gray image
         System.out.println("Loading the gray image: Please wait ...");
@@ -92,11 +224,31 @@ public class CalibrationGridPoints {
         String grayImgName = (new File(grayImgDirPath)).list()[0];
         BufferedImage grayImage = ImageUtil.load(grayImgDirPath, grayImgName);
         
+        // Adaptive threshold settings
+        Node modeNode = config.selectSingleNode("/config/calibrationTarget/thresholdMode");
+        int mode = AdaptiveThreshold.parseMode((modeNode == null) ? "mean" : modeNode.getText());
+        Node windowNode = config.selectSingleNode("/config/calibrationTarget/thresholdWindow");
+        int windowSize = (windowNode == null) ? 21 : Integer.parseInt(windowNode.getText());
+        Node offsetNode = config.selectSingleNode("/config/calibrationTarget/thresholdOffset");
+        int offset = (offsetNode == null) ? 5 : Integer.parseInt(offsetNode.getText());
+        Node sauvolaNode = config.selectSingleNode("/config/calibrationTarget/sauvolaK");
+        double sauvolaK = (sauvolaNode == null) ? 0.2 : Double.parseDouble(sauvolaNode.getText());
+        int calibTargetNRows = Integer.parseInt(config.selectSingleNode("/config/calibrationTarget/nRows").getText());
+        int calibTargetNCols = Integer.parseInt(config.selectSingleNode("/config/calibrationTarget/nCols").getText());
+        
+        // Optionally look for the target on a coarser pyramid level first, and keep only the region around it
+        Node levelsNode = config.selectSingleNode("/config/calibrationTarget/pyramidLevels");
+        int pyramidLevels = (levelsNode == null) ? 0 : Integer.parseInt(levelsNode.getText());
+        Rectangle roi = new Rectangle(0, 0, grayImage.getWidth(), grayImage.getHeight());
+        if (pyramidLevels > 0) {
+            System.out.println("Looking for the target on a coarser level: Please wait ...");
+            roi = findTargetRegion(grayImage, pyramidLevels, mode, windowSize, offset, sauvolaK, calibTargetNRows*calibTargetNCols);
+        }
+        
         // Adaptive threshold to black and white
         System.out.println("Adaptive thresholding to black and white: Please wait ...");
-        int windowSize = 21;
-        int offset = 5;
-        BufferedImage bwImage = ImageUtil.adaptiveThreshold(grayImage, windowSize, offset);
+        BufferedImage roiImage = grayImage.getSubimage(roi.x, roi.y, roi.width, roi.height);
+        BufferedImage bwImage = AdaptiveThreshold.threshold(roiImage, mode, windowSize, offset, sauvolaK);
         
         // Save the black and white image
         System.out.println("Saving the black and white image: Please wait ...");
@@ -105,43 +257,20 @@ public class CalibrationGridPoints {
         String calibGridBWName = config.selectSingleNode("/config/files/calibGridBW").getText();
         ImageUtil.save(bwImage, calibGridDirPath, calibGridBWName);
         
-        // Find the outerContours
-        System.out.println("Looking for contours: Please wait ...");
-        Contours contours = new Contours(bwImage);
-        contours.findAllContours();
-        List<List<List<Point>>> allInnerContours = contours.innerContours;
-        
-        // Save the contour image
-        System.out.println("Saving the contour image: Please wait ...");
+        // Find the dot centers, from the traced contours or from the labeled components
         String contourImageName = config.selectSingleNode("/config/files/contourImage").getText();
-        ImageUtil.save(contours.tagImg, calibGridDirPath, contourImageName);
-        
-        // Find the set of designed N inner contours
-        int calibTargetNRows = Integer.parseInt(config.selectSingleNode("/config/calibrationTarget/nRows").getText());
-        int calibTargetNCols = Integer.parseInt(config.selectSingleNode("/config/calibrationTarget/nCols").getText());
-        List<List<Point>> innerContours = new ArrayList<>();
-        boolean isSuccess = false;
-        for (int i = 0; i < allInnerContours.size(); i++) {
-            int nInner = allInnerContours.get(i).size();
-            if (nInner == (calibTargetNRows * calibTargetNCols))
-            {
-                innerContours = allInnerContours.get(i);
-                isSuccess = true;
-                break;
-            }
+        Node detectorNode = config.selectSingleNode("/config/calibrationTarget/blobDetector");
+        String detector = (detectorNode == null) ? "contours" : detectorNode.getText();
+        List<Point2D.Double> centersCamera;
+        if (detector.equals("contours")) {
+            centersCamera = findContourCenters(bwImage, roi, calibTargetNRows*calibTargetNCols, calibGridDirPath, contourImageName);
         }
-        if (isSuccess == false)
-        {
-            throw new RuntimeException("Can't find the correct number of inner contours");
+        else if (detector.equals("components")) {
+            centersCamera = findComponentCenters(bwImage, roiImage, roi, calibTargetNRows*calibTargetNCols, calibGridDirPath, contourImageName);
+        }
+        else {
+            throw new IllegalArgumentException("Unknown blob detector: " + detector);
         }
-
-        
-        // Find the contour centers
-        List<Point2D.Double> centersCamera = new ArrayList<>();
-        for (List<Point> contour: innerContours)
-        {
-            centersCamera.add(ContourUtils.findContourCenter(contour));
-        }        
         
         // Find the convex hull
         List<Point2D.Double> hull = ContourUtils.findConvexHull(centersCamera);
@@ -183,14 +312,8 @@ public class CalibrationGridPoints {
         
         // Compute the projector points 
         System.out.println("Computing projector points: Please wait ...");
-        String hPhaseMapPath = baseDirPath + "\\" +
-                               config.selectSingleNode("/config/folders/phaseMap").getText() + "\\" +
-                               config.selectSingleNode("/config/files/horizPhaseMapData").getText();
-        List<List<Double>> hPhaseMap = CSV.loadDoubleMatrix(hPhaseMapPath);        
-        String vPhaseMapPath = baseDirPath + "\\" +
-                               config.selectSingleNode("/config/folders/phaseMap").getText() + "\\" +
-                               config.selectSingleNode("/config/files/vertPhaseMapData").getText();
-        List<List<Double>> vPhaseMap = CSV.loadDoubleMatrix(vPhaseMapPath);          
+        PhaseMapFile hPhaseMap = loadPhaseMap(config, baseDirPath, "horizPhaseMapBinary", "horizPhaseMap.bin", "horizPhaseMapData");
+        PhaseMapFile vPhaseMap = loadPhaseMap(config, baseDirPath, "vertPhaseMapBinary", "vertPhaseMap.bin", "vertPhaseMapData");
         Double waveNumberX = 2*Math.PI/Double.parseDouble(config.selectSingleNode("/config/structuredLight/minHorizWaveLength").getText());
         Double waveNumberY = 2*Math.PI/Double.parseDouble(config.selectSingleNode("/config/structuredLight/minVertWaveLength").getText());
         List<Point2D.Double> centersProjector = PhaseMapUtils.computePointsAt(centersCamera, hPhaseMap, vPhaseMap, waveNumberX, waveNumberY);
@@ -207,6 +330,28 @@ public class CalibrationGridPoints {
         CSV.saveDoubleMatrix(mergedList, masterCalFolderPath, calibGridDataName, true);       
     }   
     
+    public static PhaseMapFile loadPhaseMap(Element config, String baseDirPath, String binaryKey,
+                                            String binaryDefault, String csvKey)
+    {
+        // prefer the binary phase map, and fall back to the CSV one for older data sets
+        String phaseMapDirPath = baseDirPath + "\\" + config.selectSingleNode("/config/folders/phaseMap").getText();
+        Node binaryNode = config.selectSingleNode("/config/files/" + binaryKey);
+        String binaryPath = phaseMapDirPath + "\\" + ((binaryNode == null) ? binaryDefault : binaryNode.getText());
+        if (new File(binaryPath).exists()) {
+            return PhaseMapFile.load(binaryPath);
+        }
+        String csvPath = phaseMapDirPath + "\\" + config.selectSingleNode("/config/files/" + csvKey).getText();
+        System.out.println("No binary phase map, reading the CSV: " + csvPath);
+        return PhaseMapFile.fromArray(CSV.loadDoubleMatrixAsArray(csvPath), Double.NaN);
+    }
+    
+    public static ValidityMask loadMask(Element config, String baseDirPath)
+    {
+        String phaseMapDirPath = baseDirPath + "\\" + config.selectSingleNode("/config/folders/phaseMap").getText();
+        Node maskNode = config.selectSingleNode("/config/files/validMask");
+        return ValidityMask.load(phaseMapDirPath + "\\" + ((maskNode == null) ? "validMask.bin" : maskNode.getText()));
+    }
+    
     public List<List<Double>> mergeLists2(List<Point2D.Double> first, 
                                            List<Point2D.Double> second)
     {
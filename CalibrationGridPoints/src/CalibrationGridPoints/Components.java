@@ -0,0 +1,437 @@
+package CalibrationGridPoints;
+
+import config.RowBands;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+public class Components {
+
+    // labels the connected regions of a black and white image: the black regions 8-connected and the
+    // white regions 4-connected, so that every white region not touching the image border is the
+    // hole of exactly one black region, as with the contours
+    //
+    // the labeling is a union-find over pixel indices, run in row bands in parallel; a root is always
+    // the smallest pixel index of its set, i.e. the first pixel of the region in raster order, and the
+    // bands are joined across their first rows afterwards; the raw moments of each region are summed
+    // per band in the same pass and added up once the regions are joined
+    //
+    // with a gray image the same pass also sums moments weighted by intensity: the gray value for the
+    // background and its complement for the foreground, so the pixels that belong most clearly to a
+    // region count most and its centroid is found to a fraction of a pixel
+
+    int nRows;
+    int nCols;
+    int high;
+    Raster grayRaster;
+
+    // 1 for the foreground, 0 for the background
+    byte[] pixels;
+
+    // the component of each pixel, numbered in raster order of their first pixels
+    int[] labels;
+
+    int nComponents;
+    boolean[] foreground;
+    int[] parents;
+    int[] rootPixels;
+    int[] minCols;
+    int[] maxCols;
+    int[] maxRows;
+
+    // raw moments: area, sum x, sum y, sum x^2, sum xy, sum y^2
+    long[] m00;
+    long[] m10;
+    long[] m01;
+    long[] m20;
+    long[] m11;
+    long[] m02;
+
+    // the same weighted by intensity
+    long[] w00;
+    long[] w10;
+    long[] w01;
+    long[] w20;
+    long[] w11;
+    long[] w02;
+
+    public Components(BufferedImage bwImg) {
+        this(bwImg, null);
+    }
+
+    public Components(BufferedImage bwImg, BufferedImage grayImg) {
+        this.high = 0;
+        this.nRows = bwImg.getHeight();
+        this.nCols = bwImg.getWidth();
+        if (grayImg != null && (grayImg.getWidth() != nCols || grayImg.getHeight() != nRows)) {
+            throw new IllegalArgumentException("The gray image does not match the black and white image");
+        }
+        if (grayImg != null && grayImg.getSampleModel().getSampleSize(0) > 8) {
+            throw new IllegalArgumentException("Only 8-bit gray images can weight the moments");
+        }
+        this.grayRaster = (grayImg == null) ? null : grayImg.getRaster();
+        this.pixels = new byte[nRows*nCols];
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int[] rowGray = new int[nCols];
+            for (int row = rowStart; row < rowStop; row++) {
+                AdaptiveThreshold.readRow(bwImg.getRaster(), row, rowGray);
+                int pixel = row*nCols;
+                for (int col = 0; col < nCols; col++, pixel++) {
+                    pixels[pixel] = (rowGray[col] == high) ? (byte) 1 : 0;
+                }
+            }
+        });
+    }
+
+    public int getComponentCount() {
+        return nComponents;
+    }
+
+    public boolean isForeground(int index) {
+        return foreground[index];
+    }
+
+    public int getParent(int index) {
+        // the region directly around this one, -1 when it reaches the image border
+        return parents[index];
+    }
+
+    public Rectangle getBounds(int index) {
+        // the first pixel is on the top row
+        int minRow = rootPixels[index]/nCols;
+        return new Rectangle(minCols[index], minRow, maxCols[index] - minCols[index] + 1, maxRows[index] - minRow + 1);
+    }
+
+    public Point2D.Double getWeightedCentroid(int index)
+    {
+        // the area centroid when there is no gray image or no intensity at all
+        if (w00[index] == 0) {
+            return new Point2D.Double((double) m10[index]/m00[index], (double) m01[index]/m00[index]);
+        }
+        return new Point2D.Double((double) w10[index]/w00[index], (double) w01[index]/w00[index]);
+    }
+
+    public double[] getEllipse(int index)
+    {
+        // center x, center y, semi-major axis, semi-minor axis and the angle of the major axis from
+        // the x axis, of the ellipse with the same weighted moments; a uniform ellipse with semi-axes
+        // a and b has a*a/4 and b*b/4 as the eigenvalues of its normalized central moments
+        double weight = w00[index];
+        long[] m = (weight == 0) ? new long[] {m00[index], m10[index], m01[index], m20[index], m11[index], m02[index]}
+                                 : new long[] {w00[index], w10[index], w01[index], w20[index], w11[index], w02[index]};
+        double meanX = (double) m[1]/m[0];
+        double meanY = (double) m[2]/m[0];
+        double mu20 = (double) m[3]/m[0] - meanX*meanX;
+        double mu11 = (double) m[4]/m[0] - meanX*meanY;
+        double mu02 = (double) m[5]/m[0] - meanY*meanY;
+        double mean = 0.5*(mu20 + mu02);
+        double spread = Math.sqrt(0.25*(mu20 - mu02)*(mu20 - mu02) + mu11*mu11);
+        double semiMajor = 2*Math.sqrt(Math.max(mean + spread, 0));
+        double semiMinor = 2*Math.sqrt(Math.max(mean - spread, 0));
+        double angle = 0.5*Math.atan2(2*mu11, mu20 - mu02);
+        return new double[] {meanX, meanY, semiMajor, semiMinor, angle};
+    }
+
+    public int[] getHoles(int index)
+    {
+        // the background regions directly inside a foreground region
+        int count = 0;
+        for (int i = 0; i < nComponents; i++) {
+            count += (parents[i] == index && !foreground[i]) ? 1 : 0;
+        }
+        int[] children = new int[count];
+        count = 0;
+        for (int i = 0; i < nComponents; i++) {
+            if (parents[i] == index && !foreground[i]) {
+                children[count++] = i;
+            }
+        }
+        return children;
+    }
+
+    public void findAllComponents()
+    {
+        int[] links = new int[nRows*nCols];
+
+        // the bands label their own rows and sum the moments of their own provisional regions
+        BandSums[] bands = new BandSums[nRows];
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            bands[rowStart] = labelBand(links, rowStart, rowStop);
+        });
+
+        // then the bands are joined across their first rows, in order
+        for (int row = 1; row < nRows; row++) {
+            if (bands[row] == null) {
+                continue;
+            }
+            int pixel = row*nCols;
+            for (int col = 0; col < nCols; col++, pixel++) {
+                joinAbove(links, pixel, col);
+            }
+        }
+
+        // every pixel straight to its root, and the roots counted per band
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int nRoots = 0;
+            for (int pixel = rowStart*nCols; pixel < rowStop*nCols; pixel++) {
+                int root = pixel;
+                while (links[root] != root) {
+                    root = links[root];
+                }
+                links[pixel] = root;
+                nRoots += (root == pixel) ? 1 : 0;
+            }
+            bands[rowStart].nRoots = nRoots;
+        });
+        nComponents = 0;
+        for (int row = 0; row < nRows; row++) {
+            if (bands[row] != null) {
+                bands[row].firstLabel = nComponents;
+                nComponents += bands[row].nRoots;
+            }
+        }
+
+        // numbers for the roots first, then for the other pixels
+        labels = new int[nRows*nCols];
+        rootPixels = new int[nComponents];
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int label = bands[rowStart].firstLabel;
+            for (int pixel = rowStart*nCols; pixel < rowStop*nCols; pixel++) {
+                if (links[pixel] == pixel) {
+                    rootPixels[label] = pixel;
+                    labels[pixel] = label++;
+                }
+            }
+        });
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            for (int pixel = rowStart*nCols; pixel < rowStop*nCols; pixel++) {
+                labels[pixel] = labels[links[pixel]];
+            }
+        });
+
+        // the band sums added up per component
+        m00 = new long[nComponents];
+        m10 = new long[nComponents];
+        m01 = new long[nComponents];
+        m20 = new long[nComponents];
+        m11 = new long[nComponents];
+        m02 = new long[nComponents];
+        w00 = new long[nComponents];
+        w10 = new long[nComponents];
+        w01 = new long[nComponents];
+        w20 = new long[nComponents];
+        w11 = new long[nComponents];
+        w02 = new long[nComponents];
+        boolean[] touchesBorder = new boolean[nComponents];
+        minCols = new int[nComponents];
+        maxCols = new int[nComponents];
+        maxRows = new int[nComponents];
+        Arrays.fill(minCols, nCols);
+        for (BandSums band: bands) {
+            if (band == null) {
+                continue;
+            }
+            for (int slot = 0; slot < band.nSlots; slot++) {
+                int label = labels[band.rootPixels[slot]];
+                long[] sums = band.sums;
+                int k = BandSums.nSums*slot;
+                m00[label] += sums[k];
+                m10[label] += sums[k + 1];
+                m01[label] += sums[k + 2];
+                m20[label] += sums[k + 3];
+                m11[label] += sums[k + 4];
+                m02[label] += sums[k + 5];
+                w00[label] += sums[k + 6];
+                w10[label] += sums[k + 7];
+                w01[label] += sums[k + 8];
+                w20[label] += sums[k + 9];
+                w11[label] += sums[k + 10];
+                w02[label] += sums[k + 11];
+                touchesBorder[label] |= band.touchesBorder[slot];
+                minCols[label] = Math.min(minCols[label], band.bounds[3*slot]);
+                maxCols[label] = Math.max(maxCols[label], band.bounds[3*slot + 1]);
+                maxRows[label] = Math.max(maxRows[label], band.bounds[3*slot + 2]);
+            }
+        }
+
+        // the region around a foreground region is the one left of its first pixel, and around a
+        // background region the one above its first pixel, since nothing inside can reach that far
+        foreground = new boolean[nComponents];
+        parents = new int[nComponents];
+        for (int label = 0; label < nComponents; label++) {
+            int root = rootPixels[label];
+            foreground[label] = (pixels[root] == 1);
+            if (foreground[label]) {
+                parents[label] = (root % nCols == 0) ? -1 : labels[root - 1];
+            }
+            else {
+                parents[label] = touchesBorder[label] ? -1 : labels[root - nCols];
+            }
+        }
+    }
+
+    BandSums labelBand(int[] links, int rowStart, int rowStop)
+    {
+        // union-find restricted to the band, the row above it is joined later
+        for (int row = rowStart; row < rowStop; row++) {
+            int pixel = row*nCols;
+            for (int col = 0; col < nCols; col++, pixel++) {
+                // a pixel like its left neighbour starts in its set, the rest start their own
+                if (col > 0 && pixels[pixel - 1] == pixels[pixel]) {
+                    links[pixel] = links[pixel - 1];
+                }
+                else {
+                    links[pixel] = pixel;
+                }
+                if (row > rowStart) {
+                    joinAbove(links, pixel, col);
+                }
+            }
+        }
+
+        // the provisional regions numbered in slots, with their moments and border contacts
+        int bandStart = rowStart*nCols;
+        int[] slots = new int[(rowStop - rowStart)*nCols];
+        BandSums band = new BandSums();
+        int[] rowGray = new int[nCols];
+        for (int row = rowStart; row < rowStop; row++) {
+            boolean isBorderRow = (row == 0 || row == nRows - 1);
+            long y = row;
+            if (grayRaster != null) {
+                AdaptiveThreshold.readRow(grayRaster, row, rowGray);
+            }
+            int pixel = row*nCols;
+            for (int col = 0; col < nCols; col++, pixel++) {
+                int root = find(links, pixel);
+                int slot;
+                if (root == pixel) {
+                    slot = band.addSlot(pixel);
+                    slots[pixel - bandStart] = slot;
+                }
+                else {
+                    slot = slots[root - bandStart];
+                }
+                long x = col;
+                long[] sums = band.sums;
+                int k = BandSums.nSums*slot;
+                sums[k] += 1;
+                sums[k + 1] += x;
+                sums[k + 2] += y;
+                sums[k + 3] += x*x;
+                sums[k + 4] += x*y;
+                sums[k + 5] += y*y;
+                if (grayRaster != null) {
+                    long w = (pixels[pixel] == 1) ? 255 - rowGray[col] : rowGray[col];
+                    sums[k + 6] += w;
+                    sums[k + 7] += w*x;
+                    sums[k + 8] += w*y;
+                    sums[k + 9] += w*x*x;
+                    sums[k + 10] += w*x*y;
+                    sums[k + 11] += w*y*y;
+                }
+                if (isBorderRow || col == 0 || col == nCols - 1) {
+                    band.touchesBorder[slot] = true;
+                }
+                int[] bounds = band.bounds;
+                bounds[3*slot] = Math.min(bounds[3*slot], col);
+                bounds[3*slot + 1] = Math.max(bounds[3*slot + 1], col);
+                bounds[3*slot + 2] = row;
+            }
+        }
+        return band;
+    }
+
+    void joinAbove(int[] links, int pixel, int col)
+    {
+        // the neighbours in the row above: straight up for both, the diagonals for the foreground only
+        byte value = pixels[pixel];
+        if (pixels[pixel - nCols] == value) {
+            union(links, pixel - nCols, pixel);
+        }
+        if (value == 1) {
+            if (col > 0 && pixels[pixel - nCols - 1] == 1) {
+                union(links, pixel - nCols - 1, pixel);
+            }
+            if (col < nCols - 1 && pixels[pixel - nCols + 1] == 1) {
+                union(links, pixel - nCols + 1, pixel);
+            }
+        }
+    }
+
+    static int find(int[] links, int pixel)
+    {
+        // with path halving
+        while (links[pixel] != pixel) {
+            links[pixel] = links[links[pixel]];
+            pixel = links[pixel];
+        }
+        return pixel;
+    }
+
+    static void union(int[] links, int a, int b)
+    {
+        // the smaller index stays the root
+        if (links[a] == links[b]) {
+            return;
+        }
+        int rootA = find(links, a);
+        int rootB = find(links, b);
+        if (rootA < rootB) {
+            links[rootB] = rootA;
+        }
+        else if (rootB < rootA) {
+            links[rootA] = rootB;
+        }
+    }
+
+    public BufferedImage drawComponents()
+    {
+        // the foreground black, the holes gray and the background around everything white
+        BufferedImage image = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            for (int pixel = rowStart*nCols; pixel < rowStop*nCols; pixel++) {
+                int label = labels[pixel];
+                if (!foreground[label]) {
+                    data[pixel] = (parents[label] < 0) ? (byte) 255 : (byte) 128;
+                }
+            }
+        });
+        return image;
+    }
+
+    static class BandSums {
+
+        // the six raw moments of each provisional region of a band, then the six weighted ones,
+        // and its root pixel
+        static final int nSums = 12;
+
+        long[] sums = new long[nSums*64];
+        int[] rootPixels = new int[64];
+        boolean[] touchesBorder = new boolean[64];
+
+        // min column, max column and max row
+        int[] bounds = new int[3*64];
+        int nSlots = 0;
+        int nRoots;
+        int firstLabel;
+
+        int addSlot(int rootPixel)
+        {
+            if (nSlots == rootPixels.length) {
+                sums = Arrays.copyOf(sums, 2*nSums*nSlots);
+                rootPixels = Arrays.copyOf(rootPixels, 2*nSlots);
+                touchesBorder = Arrays.copyOf(touchesBorder, 2*nSlots);
+                bounds = Arrays.copyOf(bounds, 6*nSlots);
+            }
+            rootPixels[nSlots] = rootPixel;
+            bounds[3*nSlots] = Integer.MAX_VALUE;
+            bounds[3*nSlots + 1] = -1;
+            return nSlots++;
+        }
+    }
+
+}
@@ -12,18 +12,17 @@ import org.apache.commons.io.FileUtils;
 
 public class ContourUtils {
     
-    public static Point2D.Double findContourCenter(List<Point> contour)
+    public static Point2D.Double findContourCenter(int[] contour)
     {
+        // the contour is packed as x0, y0, x1, y1, ...
         double sumX = 0;
-        double n = 0;
         double sumY = 0;
-        
-        for (Point p: contour)
+        int n = contour.length/2;
+        for (int i = 0; i < contour.length; i += 2)
         {
-            sumX += p.x;            
-            sumY += p.y; 
-            n += 1;
-        }        
+            sumX += contour[i];
+            sumY += contour[i + 1];
+        }
         
         return new Point2D.Double(sumX/n, sumY/n);
     }
@@ -1,290 +1,249 @@
 package CalibrationGridPoints;
 
-import java.awt.Point;
+import config.RowBands;
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferByte;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 public class Contours {
-    
-    BufferedImage bwImg;
-    WritableRaster bwRaster;
-    BufferedImage tagImg;
-    WritableRaster tagRaster;
+
+    // follows the borders of the black regions of a black and white image (Suzuki and Abe, 1985):
+    // every outer border and every hole border becomes one contour of packed x, y coordinates, with
+    // the contour that directly surrounds it as its parent
+    //
+    // the pixels live in a flat byte buffer with a one pixel background frame, and the border labels
+    // in a flat int buffer, so there is no limit on the number of contours
+
+    // the 8 neighbours counterclockwise on screen, starting east
+    static final int[] neighborX = {1, 1, 0, -1, -1, -1, 0, 1};
+    static final int[] neighborY = {0, -1, -1, -1, 0, 1, 1, 1};
+
     int nRows;
-    int nCols; 
+    int nCols;
     int high;
-    int low;
-    short noTag;
-    short markTag;
-    short initialTag;
-    List<List<Point>> outerContours;
-    List<List<List<Point>>> innerContours;
-    
+    int[] neighborOffsets;
+
+    // 1 for the foreground, 0 for the background and the frame
+    byte[] pixels;
+
+    // 0 background, 1 foreground not on a traced border, +-(contour index + 2) once a border has been traced
+    int[] labels;
+
+    // the contours, indexed in the order they are found
+    List<int[]> contourPoints;
+    int[] parents;
+    boolean[] holes;
+    int nContours;
+
+    // reused while tracing
+    int[] traceBuffer;
+
     public Contours(BufferedImage bwImg) {
         this.high = 0;
-        this.low = 255;
-        this.noTag = 0;
-        this.markTag = 1;
-        this.initialTag = 2;
-        this.bwImg = bwImg;
-        ImageUtil.fillBoundary(bwImg, low);
-        this.bwRaster = bwImg.getRaster();
         this.nRows = bwImg.getHeight();
         this.nCols = bwImg.getWidth();
-        this.tagImg = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
-        ImageUtil.fillImage(tagImg, noTag);
-        this.tagRaster = tagImg.getRaster();
-        this.outerContours = new ArrayList<>();
-        
-        // add empty outerContours
-        for (int i = 0; i < initialTag; i++)
-        {
-            outerContours.add(new ArrayList<>());
+        if (nRows < 3 || nCols < 3) {
+            throw new IllegalArgumentException("The image is too small for contours: " + nCols + "x" + nRows);
         }
-        this.innerContours = new ArrayList<>();
-        
-        // add empty contour indice lists
-        for (int i = 0; i < initialTag; i++)
-        {
-            innerContours.add(new ArrayList<>());
+        this.neighborOffsets = new int[8];
+        for (int k = 0; k < 8; k++) {
+            neighborOffsets[k] = neighborY[k]*nCols + neighborX[k];
         }
-    }    
-    
+
+        // the outermost rows and columns always count as background, so tracing never leaves the image
+        this.pixels = new byte[nRows*nCols];
+        RowBands.forEach(nRows - 2, (rowStart, rowStop) -> {
+            int[] rowGray = new int[nCols];
+            for (int row = rowStart + 1; row < rowStop + 1; row++) {
+                AdaptiveThreshold.readRow(bwImg.getRaster(), row, rowGray);
+                int pixel = row*nCols + 1;
+                for (int col = 1; col < nCols - 1; col++, pixel++) {
+                    pixels[pixel] = (rowGray[col] == high) ? (byte) 1 : 0;
+                }
+            }
+        });
+        this.contourPoints = new ArrayList<>();
+        this.parents = new int[64];
+        this.holes = new boolean[64];
+        this.nContours = 0;
+        this.traceBuffer = new int[1024];
+    }
+
+    public int getContourCount() {
+        return nContours;
+    }
+
+    public int[] getContour(int index) {
+        return contourPoints.get(index);
+    }
+
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    public boolean isHole(int index) {
+        return holes[index];
+    }
+
+    public int[] getHoles(int index)
+    {
+        // the hole borders directly inside an outer border
+        int count = 0;
+        for (int i = 0; i < nContours; i++) {
+            count += (parents[i] == index && holes[i]) ? 1 : 0;
+        }
+        int[] children = new int[count];
+        count = 0;
+        for (int i = 0; i < nContours; i++) {
+            if (parents[i] == index && holes[i]) {
+                children[count++] = i;
+            }
+        }
+        return children;
+    }
+
     public void findAllContours()
     {
-        // container to receive new pixels
-        int[] pixel = new int[1];
-        
-        // the tag to assign to new outerContours
-        int newTag = initialTag;
-        
-        // begin the search
-        for (int row = 1; row < nRows-1; row++)
-        {
-            for (int col = 1; col < nCols-1; col++)
-            {                               
-                // get some nearby black-white pixels                
-                bwRaster.getPixel(col, row, pixel);
-                int bw = pixel[0];
-                bwRaster.getPixel(col, row - 1, pixel);
-                int bwUp = pixel[0];
-                bwRaster.getPixel(col, row + 1, pixel);
-                int bwDown = pixel[0];
-                
-                // get some nearby tag pixels
-                tagRaster.getPixel(col, row, pixel);
-                int tag = pixel[0];
-                tagRaster.getPixel(col, row - 1, pixel);
-                int tagUp = pixel[0];
-                tagRaster.getPixel(col, row + 1, pixel);
-                int tagDown = pixel[0];
-                tagRaster.getPixel(col - 1, row, pixel);
-                int tagLeft = pixel[0];                
-                
-                // Found a New Contour's Outer Edge
-                if (bw == high &&
-                    bwUp == low &&
-                    tag == noTag )
-                {        
-                    // simultaneously findAllContours the contour's edge and mark the tagImage
-                    int startAngle = 315; //degrees
-                    List<Point> newContour = findSingleContour(col, row, startAngle, newTag);
-                                        
-                    // store the new contour
-                    outerContours.add(newContour);
+        labels = new int[nRows*nCols];
+        for (int pixel = 0; pixel < labels.length; pixel++) {
+            labels[pixel] = pixels[pixel];
+        }
 
-                    // add storage for future inner contour edges
-                    innerContours.add(new ArrayList<>());
-                    
-                    // advance
-                    newTag += 1;
+        // the frame is border 1, a hole border without a parent
+        for (int row = 1; row < nRows - 1; row++) {
+            int lastBorder = 1;
+            int pixel = row*nCols + 1;
+            for (int col = 1; col < nCols - 1; col++, pixel++) {
+                int label = labels[pixel];
+                if (label == 0) {
+                    continue;
                 }
-                
-                // Found a Exisiting Contour's Inner Edge
-                else if (bw == high &&
-                         bwDown == low &&
-                         tagDown != markTag)
-                {
-                    // determine the tag
-                    int parentTag;
-                    // use the existing tag
-                    if (tag > markTag) 
-                    {
-                        parentTag = tag;
-                    }
-                    // use the tag to the left
-                    else if (tagLeft > markTag)
-                    {
-                        parentTag = tagLeft;
-                    }
-                    // use the tag above
-                    else if (tagUp > markTag)
-                    {
-                        parentTag = tagUp;
-                    }
-                    // can't determine the correct tag, skip?
-                    else 
-                    {
-                        continue;
-                    }
-                    
-                    // simultaneously findAllContours the contour's edge and mark the tagImage
-                    int startAngle = 135; //degrees
-                    List<Point> newContour = findSingleContour(col, row, startAngle, parentTag);
-                    
-                    // store the new contour's points
-                    innerContours.get(parentTag).add(newContour);
-                } 
-                
-                // Found an interior Point
-                else if (bw == high)
-                {
-                    // determine the tag
-                    int parentTag;
-                    // use the left tag
-                    if (tag == noTag) 
-                    {
-                        parentTag = tagLeft;
-                    }
-                    // use the existing tag, which must have been assigned during a previous contour trace
-                    else {
-                        parentTag = tag;
+                if (label == 1 && labels[pixel - 1] == 0) {
+                    // the outer border of a new region
+                    traceBorder(pixel, 4, false, lastBorder);
+                }
+                else if (label >= 1 && labels[pixel + 1] == 0) {
+                    // a hole border of the region this pixel belongs to
+                    if (label > 1) {
+                        lastBorder = label;
                     }
-                    
-                    tagRaster.setPixel(col, row, new int[]{parentTag});
-                }   
-                
-            } // end col loop
-        } // end row loop      
+                    traceBorder(pixel, 0, true, lastBorder);
+                }
+                label = labels[pixel];
+                if (label != 1) {
+                    lastBorder = Math.abs(label);
+                }
+            }
+        }
     }
-    
-    private List<Point> findSingleContour(int startX, int startY, int startAngle, int tag)
+
+    void traceBorder(int start, int fromDirection, boolean isHole, int lastBorder)
     {
-        List<Point> outputEdge = new ArrayList<>();
-         
-        // First Point
-        Point firstPoint = new Point(startX, startY);
-        tagRaster.setPixel(startX, startY, new double[]{tag});
-        outputEdge.add(new Point(startX, startY));
-        
-        // Second Point
-        Point secondPoint = findNextContourPoint(firstPoint, startAngle, high);
-        // If we can't findAllContours second index because the contour is a single pixel        
-        if (secondPoint == null) {
-            return outputEdge; 
-        }        
-        
-        // Current Index
-        Point currPoint = secondPoint;
-        
-        // Next Index
-        NeighborPixels neighborPixels = new NeighborPixels(secondPoint);
-        int searchAngle = (neighborPixels.getAngleTo(firstPoint) + 90);
-        Point nextPoint = findNextContourPoint(secondPoint, searchAngle, high);
-        
-        while(!currPoint.equals(firstPoint)  || !nextPoint.equals(secondPoint))
-        {
-            // Store the point
-            outputEdge.add(currPoint);
-            
-            // Tag the point
-            tagRaster.setPixel(currPoint.x, currPoint.y, new int[]{tag});
-            
-            // Update
-            neighborPixels = new NeighborPixels(nextPoint);
-            searchAngle = (neighborPixels.getAngleTo(currPoint) + 90);
-            currPoint = nextPoint;            
-            nextPoint = findNextContourPoint(currPoint, searchAngle, high);
+        int border = nContours + 2;
+
+        // the parent follows from the kind of the border last crossed on this row
+        int lastIndex = lastBorder - 2;
+        boolean lastIsHole = (lastIndex < 0) || holes[lastIndex];
+        int parent;
+        if (isHole == lastIsHole) {
+            parent = (lastIndex < 0) ? -1 : parents[lastIndex];
+        }
+        else {
+            parent = lastIndex;
         }
+        addContour(parent, isHole);
 
-        return outputEdge;
-    }
-    
-    private Point findNextContourPoint(Point currentPoint, int startAngle, int value)
-    {
-        NeighborPixels neighborPixels = new NeighborPixels(currentPoint);
-        List<Point> neighborList = neighborPixels.getSearchPts(startAngle); 
-            
-        for (Point neighbor: neighborList)
-        {                        
-            // if this search point is outside the image boundaries, skip it
-            if (neighbor.x < 0 || neighbor.x > (nCols-1) || 
-                neighbor.y < 0 || neighbor.y > (nRows-1)) {
-                continue;
+        // clockwise from the starting neighbour, for the first pixel of the border
+        int nPoints = 0;
+        int direction = fromDirection;
+        int found = -1;
+        for (int step = 0; step < 8; step++) {
+            if (labels[start + neighborOffsets[direction]] != 0) {
+                found = direction;
+                break;
+            }
+            direction = (direction + 7) & 7;
+        }
+        if (found < 0) {
+            // an isolated pixel
+            labels[start] = -border;
+            contourPoints.add(new int[] {start % nCols, start / nCols});
+            return;
+        }
+
+        int second = start + neighborOffsets[found];
+        int current = start;
+        int previousDirection = found;
+        while (true) {
+            nPoints = addPoint(nPoints, current);
+
+            // counterclockwise from just after the pixel we came from, to the next border pixel
+            boolean isEastEmpty = false;
+            direction = (previousDirection + 1) & 7;
+            int next;
+            while (true) {
+                next = current + neighborOffsets[direction];
+                if (labels[next] != 0) {
+                    break;
+                }
+                if (direction == 0) {
+                    isEastEmpty = true;
+                }
+                direction = (direction + 1) & 7;
             }
-            
-            // get the current black and white pixel
-            int[] bwPixel = new int[1];
-            bwRaster.getPixel(neighbor.x, neighbor.y, bwPixel);
-            int bw = bwPixel[0];
-            
-            // we found the next neighbor
-            if (bw == value)
-            {
-                return neighbor;
-            } 
-            // we found an empty pixel, so only mark it
-            else
-            {
-                tagRaster.setPixel(neighbor.x, neighbor.y, new int[]{markTag});
+            if (isEastEmpty) {
+                labels[current] = -border;
             }
+            else if (labels[current] == 1) {
+                labels[current] = border;
+            }
+            if (next == start && current == second) {
+                break;
+            }
+
+            // looking back from the next pixel to this one
+            previousDirection = (direction + 4) & 7;
+            current = next;
         }
-        
-        // could not findAllContours the next neighbor
-        return null; 
+        contourPoints.add(Arrays.copyOf(traceBuffer, 2*nPoints));
     }
-}
 
-class NeighborPixels {
-    
-    Integer[] neighborAngles;
-    List<Point> neighborPoints;
-    
-    public NeighborPixels(Point pt)
-    {        
-        int x = pt.x;
-        int y = pt.y;
-        neighborAngles = new Integer[]{0,45,90,135,180,225,270,315};    
-        neighborPoints = new ArrayList<>(8);
-        neighborPoints.add(new Point((x + 1), (y + 0)));
-        neighborPoints.add(new Point((x + 1), (y + 1)));
-        neighborPoints.add(new Point((x + 0), (y + 1)));
-        neighborPoints.add(new Point((x - 1), (y + 1)));
-        neighborPoints.add(new Point((x - 1), (y + 0)));
-        neighborPoints.add(new Point((x - 1), (y - 1)));
-        neighborPoints.add(new Point((x + 0), (y - 1)));
-        neighborPoints.add(new Point((x + 1), (y - 1)));
+    int addPoint(int nPoints, int pixel)
+    {
+        if (2*nPoints + 2 > traceBuffer.length) {
+            traceBuffer = Arrays.copyOf(traceBuffer, 2*traceBuffer.length);
+        }
+        traceBuffer[2*nPoints] = pixel % nCols;
+        traceBuffer[2*nPoints + 1] = pixel / nCols;
+        return nPoints + 1;
     }
-       
-    public int getAngleTo(Point pt)
+
+    void addContour(int parent, boolean isHole)
     {
-        int key = neighborPoints.indexOf(pt);
-        return neighborAngles[key];
+        if (nContours == parents.length) {
+            parents = Arrays.copyOf(parents, 2*nContours);
+            holes = Arrays.copyOf(holes, 2*nContours);
+        }
+        parents[nContours] = parent;
+        holes[nContours] = isHole;
+        nContours += 1;
     }
-    
-    public List<Point> getSearchPts(int startAngle)
+
+    public BufferedImage drawContours()
     {
-        // make sure angle is from 0 to 360 degrees
-        startAngle = startAngle%360;
-        
-        // copy the neighboring points
-        List<Point> output = new ArrayList<>(neighborPoints);
-        
-        // rotate the list of neighboring points to start with the one at the start angle
-        int offset = Arrays.binarySearch(neighborAngles, startAngle);        
-        Collections.rotate(output, -1*offset);
-        
-        return output;
+        // outer borders white and hole borders gray, on black
+        BufferedImage image = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < nContours; i++) {
+            int[] points = contourPoints.get(i);
+            byte value = holes[i] ? (byte) 128 : (byte) 255;
+            for (int k = 0; k < points.length; k += 2) {
+                data[points[k + 1]*nCols + points[k]] = value;
+            }
+        }
+        return image;
     }
-    
-    
-    
-    
-    
-    
 
 }
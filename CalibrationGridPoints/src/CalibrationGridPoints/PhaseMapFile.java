@@ -0,0 +1,115 @@
+package CalibrationGridPoints;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class PhaseMapFile {
+
+    // reads the binary phase maps written by phasemap.PhaseMapFile, straight from a memory mapping
+
+    static final int magic = 0x50484D50; // "PHMP"
+    static final int version = 1;
+    static final int typeFloat32 = 1;
+    static final int typeFloat64 = 2;
+
+    int nRows;
+    int nCols;
+    double nullPhase;
+    double[] waveLengths;
+
+    // exactly one of these views holds the row-major values
+    FloatBuffer floatData;
+    DoubleBuffer doubleData;
+
+    PhaseMapFile(int nRows, int nCols, double nullPhase, double[] waveLengths) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.nullPhase = nullPhase;
+        this.waveLengths = waveLengths;
+    }
+
+    public int getHeight() {
+        return nRows;
+    }
+
+    public int getWidth() {
+        return nCols;
+    }
+
+    public double getNullPhase() {
+        return nullPhase;
+    }
+
+    public double[] getWaveLengths() {
+        return waveLengths;
+    }
+
+    public double get(int row, int col) {
+        int index = row*nCols + col;
+        return (doubleData != null) ? doubleData.get(index) : floatData.get(index);
+    }
+
+    public static PhaseMapFile load(String path)
+    {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != magic || buffer.getInt() != version) {
+                throw new IllegalArgumentException("Not a phase map file: " + path);
+            }
+            int nRows = buffer.getInt();
+            int nCols = buffer.getInt();
+            int dataType = buffer.getInt();
+            int dataOffset = buffer.getInt();
+            double nullPhase = buffer.getDouble();
+            double[] waveLengths = new double[buffer.getInt()];
+            for (int i = 0; i < waveLengths.length; i++) {
+                waveLengths[i] = buffer.getDouble();
+            }
+
+            PhaseMapFile phaseMap = new PhaseMapFile(nRows, nCols, nullPhase, waveLengths);
+            buffer.position(dataOffset);
+            if (dataType == typeFloat64) {
+                phaseMap.doubleData = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            else if (dataType == typeFloat32) {
+                phaseMap.floatData = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            else {
+                throw new IllegalArgumentException("Unknown phase map data type " + dataType + " in: " + path);
+            }
+            if ((long) nRows*nCols > ((phaseMap.doubleData != null) ? phaseMap.doubleData.limit() : phaseMap.floatData.limit())) {
+                throw new IllegalArgumentException("The phase map file is truncated: " + path);
+            }
+            return phaseMap;
+        }
+        catch (IOException exp) {
+            for (StackTraceElement elem: exp.getStackTrace()) {
+                System.out.println(elem);
+            }
+            throw new RuntimeException("Could not open the file");
+        }
+    }
+
+    public static PhaseMapFile fromArray(double[][] array, double nullPhase)
+    {
+        // for phase maps that only exist as CSV
+        int nRows = array.length;
+        int nCols = array[0].length;
+        PhaseMapFile phaseMap = new PhaseMapFile(nRows, nCols, nullPhase, new double[0]);
+        phaseMap.doubleData = DoubleBuffer.allocate(nRows*nCols);
+        for (double[] rowData: array) {
+            phaseMap.doubleData.put(rowData, 0, nCols);
+        }
+        phaseMap.doubleData.clear();
+        return phaseMap;
+    }
+
+}
@@ -8,8 +8,8 @@ import java.util.List;
 public class PhaseMapUtils {
     
     public static  List<Point2D.Double> computePointsAt(List<Point2D.Double> ptsIn, 
-                                                        List<List<Double>> hPhaseMap, 
-                                                        List<List<Double>> vPhaseMap,
+                                                        PhaseMapFile hPhaseMap, 
+                                                        PhaseMapFile vPhaseMap,
                                                         double waveNumberX, double waveNumberY)
     {
         List<Point2D.Double> projector = new ArrayList<>(ptsIn.size());
@@ -26,14 +26,14 @@ public class PhaseMapUtils {
 //            double vPhaseInterp = vPhaseMap.get((int)Math.round(centerY)).get((int)Math.round(centerX));
             double xFactor = (centerX-Math.floor(centerX));
             double yFactor = (centerY-Math.floor(centerY));
-            double hPhaseInterp = xFactor * (1-yFactor) * hPhaseMap.get(centerNE.y).get(centerNE.x) + 
-                                  (1-xFactor) * (1-yFactor) * hPhaseMap.get(centerNW.y).get(centerNW.x) +
-                                  xFactor * yFactor * hPhaseMap.get(centerSE.y).get(centerSE.x) +
-                                  (1-xFactor) * yFactor * hPhaseMap.get(centerSW.y).get(centerSW.x);
-            double vPhaseInterp = xFactor * (1-yFactor) * vPhaseMap.get(centerNE.y).get(centerNE.x) + 
-                                  (1-xFactor) * (1-yFactor) * vPhaseMap.get(centerNW.y).get(centerNW.x) +
-                                  xFactor * yFactor * vPhaseMap.get(centerSE.y).get(centerSE.x) +
-                                  (1-xFactor) * yFactor * vPhaseMap.get(centerSW.y).get(centerSW.x);
+            double hPhaseInterp = xFactor * (1-yFactor) * hPhaseMap.get(centerNE.y, centerNE.x) + 
+                                  (1-xFactor) * (1-yFactor) * hPhaseMap.get(centerNW.y, centerNW.x) +
+                                  xFactor * yFactor * hPhaseMap.get(centerSE.y, centerSE.x) +
+                                  (1-xFactor) * yFactor * hPhaseMap.get(centerSW.y, centerSW.x);
+            double vPhaseInterp = xFactor * (1-yFactor) * vPhaseMap.get(centerNE.y, centerNE.x) + 
+                                  (1-xFactor) * (1-yFactor) * vPhaseMap.get(centerNW.y, centerNW.x) +
+                                  xFactor * yFactor * vPhaseMap.get(centerSE.y, centerSE.x) +
+                                  (1-xFactor) * yFactor * vPhaseMap.get(centerSW.y, centerSW.x);
             
             // convert phase to projector image space position
             double projectorX = hPhaseInterp/waveNumberX;
@@ -0,0 +1,110 @@
+package CalibrationGridPoints;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class ValidityMask {
+
+    // reads the pixel masks written by phasemap.ValidityMask: one bit per pixel with a phase in
+    // both maps, each row padded to whole words, and the fringe modulation of every pixel
+
+    static final int magic = 0x50484D4B; // "PHMK"
+    static final int version = 1;
+    static final int headerSize = 4*5;
+
+    int nRows;
+    int nCols;
+    int wordsPerRow;
+    long[] words;
+    float[] modulation;
+
+    ValidityMask(int nRows, int nCols, int wordsPerRow) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.wordsPerRow = wordsPerRow;
+        this.words = new long[nRows*wordsPerRow];
+        this.modulation = new float[nRows*nCols];
+    }
+
+    public interface PixelOperation {
+        void run(int row, int col);
+    }
+
+    public int getHeight() {
+        return nRows;
+    }
+
+    public int getWidth() {
+        return nCols;
+    }
+
+    public boolean isValid(int row, int col) {
+        return (words[row*wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    public float getModulation(int row, int col) {
+        return modulation[row*nCols + col];
+    }
+
+    public int countValid()
+    {
+        int count = 0;
+        for (long word: words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public void forEachValid(PixelOperation operation)
+    {
+        // visits only the set bits, in row-major order
+        for (int row = 0; row < nRows; row++) {
+            int wordStart = row*wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                long word = words[wordStart + w];
+                while (word != 0) {
+                    operation.run(row, (w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    public static ValidityMask load(String path)
+    {
+        // the mask is optional, so a missing file just means every pixel is used
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != magic || buffer.getInt() != version) {
+                throw new IllegalArgumentException("Not a mask file: " + path);
+            }
+            int nRows = buffer.getInt();
+            int nCols = buffer.getInt();
+            int wordsPerRow = buffer.getInt();
+            ValidityMask mask = new ValidityMask(nRows, nCols, wordsPerRow);
+            if (channel.size() < headerSize + 8L*mask.words.length + 4L*mask.modulation.length) {
+                throw new IllegalArgumentException("The mask file is truncated: " + path);
+            }
+            buffer.asLongBuffer().get(mask.words);
+            buffer.position(headerSize + 8*mask.words.length);
+            buffer.asFloatBuffer().get(mask.modulation);
+            return mask;
+        }
+        catch (IOException exp) {
+            for (StackTraceElement elem: exp.getStackTrace()) {
+                System.out.println(elem);
+            }
+            throw new RuntimeException("Could not open the file");
+        }
+    }
+
+}
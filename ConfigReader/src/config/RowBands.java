@@ -0,0 +1,54 @@
+package config;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+public class RowBands {
+
+    // rows per fork-join task before it stops splitting
+    static final int rowsPerTask = 16;
+
+    public interface BandOperation {
+        void run(int rowStart, int rowStop);
+    }
+
+    public static void forEach(int nRows, BandOperation operation)
+    {
+        // pixels of different rows are independent, so any split gives the sequential result
+        BandTask task = new BandTask(operation, 0, nRows);
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        }
+        else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    static class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        BandOperation operation;
+        int rowStart;
+        int rowStop;
+
+        BandTask(BandOperation operation, int rowStart, int rowStop) {
+            this.operation = operation;
+            this.rowStart = rowStart;
+            this.rowStop = rowStop;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowStop - rowStart <= rowsPerTask) {
+                operation.run(rowStart, rowStop);
+                return;
+            }
+            int middle = (rowStart + rowStop) >>> 1;
+            invokeAll(new BandTask(operation, rowStart, middle),
+                      new BandTask(operation, middle, rowStop));
+        }
+    }
+
+}
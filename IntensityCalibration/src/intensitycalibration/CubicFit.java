@@ -0,0 +1,343 @@
+package intensitycalibration;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class CubicFit {
+
+    static final int nCoeffs = 4;
+
+    // gray values are fit as t = gray/255, which keeps the normal equations well conditioned
+    static final double grayScale = 255.0;
+
+    // rows per fork-join task before it stops splitting
+    static final int rowsPerTask = 16;
+
+    // pivots smaller than this are treated as a singular fit, like the old QR solver
+    static final double singularThresh = 1e-12;
+
+    int nRows;
+    int nCols;
+    int nPixels;
+
+    // struct-of-arrays: coefficient k of pixel p, for t^k, is at coeffs[k*nPixels + p]
+    float[] coeffs;
+
+    // rms residual of each pixel's fit in calibration levels, NaN where the fit was singular
+    float[] residuals;
+
+    public CubicFit(int nRows, int nCols) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.nPixels = nRows*nCols;
+        this.coeffs = new float[nCoeffs*nPixels];
+        this.residuals = new float[nPixels];
+    }
+
+    public static CubicFit fitStack(List<BufferedImage> stack, List<Integer> calibLevels)
+    {
+        int nRows = stack.get(0).getHeight();
+        int nCols = stack.get(0).getWidth();
+        CubicFit fit = new CubicFit(nRows, nCols);
+        fit.fitBand(stack, calibLevels, 0);
+        return fit;
+    }
+
+    public void fitBand(List<BufferedImage> band, List<Integer> calibLevels, int rowOffset)
+    {
+        // fit the rows of a horizontal band of the stack that starts at rowOffset
+        if (band.size() < calibLevels.size()) {
+            throw new IllegalArgumentException("There are fewer calibration frames than calibration levels");
+        }
+        checkBandSize(band, rowOffset);
+        double[] levels = new double[calibLevels.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = calibLevels.get(i);
+        }
+        ForkJoinPool.commonPool().invoke(new FitTask(band, levels, rowOffset, 0, band.get(0).getHeight()));
+    }
+
+    public double evaluate(int pixel, double gray)
+    {
+        double t = gray/grayScale;
+        return ((coeffs[3*nPixels + pixel]*t + coeffs[2*nPixels + pixel])*t + coeffs[nPixels + pixel])*t + coeffs[pixel];
+    }
+
+    public void applyStack(List<BufferedImage> stack)
+    {
+        // overwrite every frame of the stack with its fitted values, in parallel row bands
+        if (stack.get(0).getHeight() != nRows) {
+            throw new IllegalArgumentException("The image stack doesn't match the size of the fitted response");
+        }
+        applyBand(stack, 0);
+    }
+
+    public void applyBand(List<BufferedImage> band, int rowOffset)
+    {
+        checkBandSize(band, rowOffset);
+        ForkJoinPool.commonPool().invoke(new ApplyTask(band, rowOffset, 0, band.get(0).getHeight()));
+    }
+
+    void checkBandSize(List<BufferedImage> band, int rowOffset)
+    {
+        if (band.get(0).getWidth() != nCols || rowOffset < 0 || rowOffset + band.get(0).getHeight() > nRows) {
+            throw new IllegalArgumentException("The image stack doesn't match the size of the fitted response");
+        }
+    }
+
+    void applyRows(List<BufferedImage> stack, int rowOffset, int rowStart, int rowStop)
+    {
+        // frames whose pixels are plain bytes are worked on directly, the rest go through their rasters
+        int nSlices = stack.size();
+        byte[][] sliceData = new byte[nSlices][];
+        int[] sliceOffsets = new int[nSlices];
+        int[] sliceScanlines = new int[nSlices];
+        WritableRaster[] otherRasters = new WritableRaster[nSlices];
+        int[][] otherSamples = new int[nSlices][];
+        for (int slice = 0; slice < nSlices; slice++) {
+            WritableRaster raster = stack.get(slice).getRaster();
+            if (isByteGray(raster)) {
+                ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                sliceData[slice] = ((DataBufferByte) raster.getDataBuffer()).getData();
+                sliceScanlines[slice] = sampleModel.getScanlineStride();
+                sliceOffsets[slice] = raster.getDataBuffer().getOffset() + sampleModel.getOffset(
+                                      -raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            }
+            else {
+                otherRasters[slice] = raster;
+                otherSamples[slice] = new int[nCols];
+            }
+        }
+
+        for (int row = rowStart; row < rowStop; row++) {
+            for (int slice = 0; slice < nSlices; slice++) {
+                if (otherRasters[slice] != null) {
+                    otherRasters[slice].getSamples(0, row, nCols, 1, 0, otherSamples[slice]);
+                }
+            }
+            int pixel = (row + rowOffset)*nCols;
+            for (int col = 0; col < nCols; col++, pixel++) {
+                double c0 = coeffs[pixel];
+                double c1 = coeffs[nPixels + pixel];
+                double c2 = coeffs[2*nPixels + pixel];
+                double c3 = coeffs[3*nPixels + pixel];
+                for (int slice = 0; slice < nSlices; slice++) {
+                    byte[] data = sliceData[slice];
+                    if (data != null) {
+                        int index = sliceOffsets[slice] + row*sliceScanlines[slice] + col;
+                        double t = (data[index] & 0xFF)/grayScale;
+                        data[index] = (byte) clampGray(((c3*t + c2)*t + c1)*t + c0);
+                    }
+                    else {
+                        double t = otherSamples[slice][col]/grayScale;
+                        otherSamples[slice][col] = clampGray(((c3*t + c2)*t + c1)*t + c0);
+                    }
+                }
+            }
+            for (int slice = 0; slice < nSlices; slice++) {
+                if (otherRasters[slice] != null) {
+                    otherRasters[slice].setSamples(0, row, nCols, 1, 0, otherSamples[slice]);
+                }
+            }
+        }
+    }
+
+    static int clampGray(double value)
+    {
+        // same result as rounding and then clamping to 0..255
+        if (value >= 254.5) {
+            return 255;
+        }
+        if (value >= 0.5) {
+            return (int) (value + 0.5);
+        }
+        return 0;
+    }
+
+    static boolean isByteGray(Raster raster)
+    {
+        return raster.getNumBands() == 1 &&
+               raster.getDataBuffer() instanceof DataBufferByte &&
+               raster.getSampleModel() instanceof ComponentSampleModel &&
+               ((ComponentSampleModel) raster.getSampleModel()).getPixelStride() == 1;
+    }
+
+    void fitRows(List<BufferedImage> stack, double[] levels, int rowOffset, int rowStart, int rowStop)
+    {
+        // scratch buffers, reused for every pixel of the band
+        int nSlices = levels.length;
+        int[][] rowSamples = new int[nSlices][nCols];
+        double[] powerSums = new double[2*nCoeffs - 1];
+        double[] rhs = new double[nCoeffs];
+        double[] normal = new double[nCoeffs*nCoeffs];
+        double[] solution = new double[nCoeffs];
+
+        for (int row = rowStart; row < rowStop; row++) {
+            for (int slice = 0; slice < nSlices; slice++) {
+                Raster raster = stack.get(slice).getRaster();
+                raster.getSamples(0, row, nCols, 1, 0, rowSamples[slice]);
+            }
+            for (int col = 0; col < nCols; col++) {
+
+                // accumulate the sums of t^0..t^6 and of level*t^0..t^3
+                for (int j = 0; j < powerSums.length; j++) {
+                    powerSums[j] = 0;
+                }
+                for (int k = 0; k < nCoeffs; k++) {
+                    rhs[k] = 0;
+                }
+                for (int slice = 0; slice < nSlices; slice++) {
+                    double t = rowSamples[slice][col]/grayScale;
+                    double level = levels[slice];
+                    double power = 1;
+                    for (int j = 0; j < powerSums.length; j++) {
+                        powerSums[j] += power;
+                        if (j < nCoeffs) {
+                            rhs[j] += level*power;
+                        }
+                        power *= t;
+                    }
+                }
+
+                // the normal matrix is a Hankel matrix of the power sums
+                for (int i = 0; i < nCoeffs; i++) {
+                    for (int j = 0; j < nCoeffs; j++) {
+                        normal[i*nCoeffs + j] = powerSums[i + j];
+                    }
+                }
+
+                // store the coefficients, or zeros if the fit is singular
+                int pixel = (row + rowOffset)*nCols + col;
+                boolean isSolved = solve(normal, rhs, solution);
+                for (int k = 0; k < nCoeffs; k++) {
+                    coeffs[k*nPixels + pixel] = isSolved ? (float) solution[k] : 0.0f;
+                }
+
+                // and how well it fits
+                if (isSolved) {
+                    double sumSq = 0;
+                    for (int slice = 0; slice < nSlices; slice++) {
+                        double t = rowSamples[slice][col]/grayScale;
+                        double diff = ((solution[3]*t + solution[2])*t + solution[1])*t + solution[0] - levels[slice];
+                        sumSq += diff*diff;
+                    }
+                    residuals[pixel] = (float) Math.sqrt(sumSq/nSlices);
+                }
+                else {
+                    residuals[pixel] = Float.NaN;
+                }
+            }
+        }
+    }
+
+    static boolean solve(double[] a, double[] b, double[] x)
+    {
+        // gaussian elimination with partial pivoting, in place on a and b
+        int n = b.length;
+        double scale = 0;
+        for (double value: a) {
+            scale = Math.max(scale, Math.abs(value));
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++) {
+                if (Math.abs(a[row*n + col]) > Math.abs(a[pivot*n + col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot*n + col]) <= singularThresh*scale) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int k = 0; k < n; k++) {
+                    double temp = a[col*n + k];
+                    a[col*n + k] = a[pivot*n + k];
+                    a[pivot*n + k] = temp;
+                }
+                double temp = b[col];
+                b[col] = b[pivot];
+                b[pivot] = temp;
+            }
+            for (int row = col + 1; row < n; row++) {
+                double factor = a[row*n + col]/a[col*n + col];
+                for (int k = col; k < n; k++) {
+                    a[row*n + k] -= factor*a[col*n + k];
+                }
+                b[row] -= factor*b[col];
+            }
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for (int k = row + 1; k < n; k++) {
+                sum -= a[row*n + k]*x[k];
+            }
+            x[row] = sum/a[row*n + row];
+        }
+        return true;
+    }
+
+    class FitTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        List<BufferedImage> stack;
+        double[] levels;
+        int rowOffset;
+        int rowStart;
+        int rowStop;
+
+        FitTask(List<BufferedImage> stack, double[] levels, int rowOffset, int rowStart, int rowStop) {
+            this.stack = stack;
+            this.levels = levels;
+            this.rowOffset = rowOffset;
+            this.rowStart = rowStart;
+            this.rowStop = rowStop;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowStop - rowStart <= rowsPerTask) {
+                fitRows(stack, levels, rowOffset, rowStart, rowStop);
+                return;
+            }
+            int middle = (rowStart + rowStop) >>> 1;
+            invokeAll(new FitTask(stack, levels, rowOffset, rowStart, middle),
+                      new FitTask(stack, levels, rowOffset, middle, rowStop));
+        }
+    }
+
+    class ApplyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        List<BufferedImage> stack;
+        int rowOffset;
+        int rowStart;
+        int rowStop;
+
+        ApplyTask(List<BufferedImage> stack, int rowOffset, int rowStart, int rowStop) {
+            this.stack = stack;
+            this.rowOffset = rowOffset;
+            this.rowStart = rowStart;
+            this.rowStop = rowStop;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowStop - rowStart <= rowsPerTask) {
+                applyRows(stack, rowOffset, rowStart, rowStop);
+                return;
+            }
+            int middle = (rowStart + rowStop) >>> 1;
+            invokeAll(new ApplyTask(stack, rowOffset, rowStart, middle),
+                      new ApplyTask(stack, rowOffset, middle, rowStop));
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package intensitycalibration;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+public class FrameStore {
+
+    // an uncompressed file of 8-bit gray frames, one after the other, so bands can be read without decoding
+
+    File file;
+    FileChannel channel;
+    int nFrames;
+    int nRows;
+    int nCols;
+
+    FrameStore(File file, int nFrames, int nRows, int nCols) throws IOException {
+        this.file = file;
+        this.nFrames = nFrames;
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public int getFrameCount() {
+        return nFrames;
+    }
+
+    public int getHeight() {
+        return nRows;
+    }
+
+    public int getWidth() {
+        return nCols;
+    }
+
+    public static FrameStore create(String dirPath, File storeFile)
+    {
+        // decode the frames one at a time and append their gray samples to the store; on any failure
+        // the store is closed and its file deleted, since the caller never gets to see it
+        FrameStore store = null;
+        boolean isCreated = false;
+        try {
+            String[] names = new File(dirPath).list();
+            if (names == null || names.length == 0) {
+                throw new IllegalArgumentException("Can't find any images in: " + dirPath);
+            }
+            for (int i = 0; i < names.length; i++) {
+                BufferedImage frame = ImageIO.read(new File(dirPath + "\\" + names[i]));
+                if (frame == null) {
+                    throw new IllegalArgumentException("Not an image: " + dirPath + "\\" + names[i]);
+                }
+                if (store == null) {
+                    store = new FrameStore(storeFile, names.length, frame.getHeight(), frame.getWidth());
+                }
+                if (frame.getHeight() != store.nRows || frame.getWidth() != store.nCols) {
+                    throw new IllegalArgumentException("The images in " + dirPath + " don't all have the same size");
+                }
+                store.writeFrame(i, frame);
+            }
+            isCreated = true;
+            return store;
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not load the image stack.");
+        }
+        finally {
+            if (!isCreated) {
+                if (store != null) {
+                    store.close();
+                }
+                else {
+                    storeFile.delete();
+                }
+            }
+        }
+    }
+
+    void writeFrame(int frameIndex, BufferedImage frame) throws IOException
+    {
+        Raster raster = frame.getRaster();
+        int[] rowSamples = new int[nCols];
+        ByteBuffer rowBuffer = ByteBuffer.allocate(nCols);
+        for (int row = 0; row < nRows; row++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + row, nCols, 1, 0, rowSamples);
+            rowBuffer.clear();
+            for (int col = 0; col < nCols; col++) {
+                rowBuffer.put((byte) rowSamples[col]);
+            }
+            rowBuffer.flip();
+            writeFully(rowBuffer, offset(frameIndex, row));
+        }
+    }
+
+    public List<BufferedImage> createBand(int maxBandRows)
+    {
+        // gray images to read bands into, with rows packed so a band is one contiguous read
+        List<BufferedImage> band = new ArrayList<>(nFrames);
+        for (int i = 0; i < nFrames; i++) {
+            band.add(new BufferedImage(nCols, maxBandRows, BufferedImage.TYPE_BYTE_GRAY));
+        }
+        return band;
+    }
+
+    public List<BufferedImage> readBand(List<BufferedImage> bandBuffers, int rowStart, int nBandRows)
+    {
+        List<BufferedImage> band = new ArrayList<>(nFrames);
+        try {
+            for (int i = 0; i < nFrames; i++) {
+                BufferedImage buffer = bandBuffers.get(i);
+                byte[] data = ((DataBufferByte) buffer.getRaster().getDataBuffer()).getData();
+                readFully(ByteBuffer.wrap(data, 0, nBandRows*nCols), offset(i, rowStart));
+                band.add((nBandRows == buffer.getHeight()) ? buffer : buffer.getSubimage(0, 0, nCols, nBandRows));
+            }
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not read from the frame store: " + file);
+        }
+        return band;
+    }
+
+    public void writeBand(List<BufferedImage> bandBuffers, int rowStart, int nBandRows)
+    {
+        try {
+            for (int i = 0; i < nFrames; i++) {
+                byte[] data = ((DataBufferByte) bandBuffers.get(i).getRaster().getDataBuffer()).getData();
+                writeFully(ByteBuffer.wrap(data, 0, nBandRows*nCols), offset(i, rowStart));
+            }
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not write to the frame store: " + file);
+        }
+    }
+
+    public BufferedImage readFrame(int frameIndex)
+    {
+        BufferedImage frame = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] data = ((DataBufferByte) frame.getRaster().getDataBuffer()).getData();
+        try {
+            readFully(ByteBuffer.wrap(data), offset(frameIndex, 0));
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not read from the frame store: " + file);
+        }
+        return frame;
+    }
+
+    public void close()
+    {
+        try {
+            channel.close();
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not close the frame store: " + file);
+        }
+        file.delete();
+    }
+
+    long offset(int frameIndex, int row) {
+        return ((long) frameIndex*nRows + row)*nCols;
+    }
+
+    void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of the frame store");
+            }
+            position += n;
+        }
+    }
+
+    void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+}
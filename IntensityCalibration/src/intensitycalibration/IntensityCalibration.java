@@ -8,18 +8,14 @@ import java.util.ArrayList;
 import java.util.List;
 import javax.imageio.ImageIO;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.math3.analysis.function.Power;
-import org.apache.commons.math3.linear.DecompositionSolver;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.QRDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.RealVector;
-import org.apache.commons.math3.linear.SingularMatrixException;
 import org.dom4j.Element;
 import org.dom4j.Node;
 
 public class IntensityCalibration {
 
+    // the response model shared by all folders of this run
+    ResponseModel responseModel;
+
     public IntensityCalibration(String configPath) {      
         
         // load configuration data
@@ -43,6 +39,13 @@ public class IntensityCalibration {
     
     public final void calibrateIntensity(Element root, String baseDirPath)
     {
+        // with a memory budget, stream the stacks through in bands instead
+        Node budgetNode = root.selectSingleNode("/config/intensityCalibration/memoryBudgetMB");
+        if (budgetNode != null) {
+            calibrateIntensityTiled(root, baseDirPath, Long.parseLong(budgetNode.getText())*1024*1024);
+            return;
+        }
+        
         // load image stacks
         System.out.println("Loading images: Please Wait ...");
         List<BufferedImage> calibFrames = loadStack(baseDirPath + "\\" +
@@ -50,10 +53,9 @@ public class IntensityCalibration {
         List<BufferedImage> phaseFrames = loadStack(baseDirPath + "\\" +
                                                         root.selectSingleNode("/config/folders/phaseFrames").getText());
         
-        // polynomial fitting
-        System.out.println("Performing polynomial fitting: Please Wait ...");
+        // polynomial fitting, or reuse the rig's response model
         List<Integer> calibLevels = Util.parseIntegerArray(root.selectSingleNode("/config/structuredLight/calibLevels").getText());
-        List<List<RealVector>> P = polyFitStack(calibFrames, calibLevels);
+        CubicFit P = getResponseModel(root, calibFrames, calibLevels).getFit();
         
         // apply fitting to stacks
         System.out.println("Applying fitting results to images: Please Wait ...");
@@ -70,6 +72,164 @@ public class IntensityCalibration {
         saveStack(phaseFramesFitted, phaseFitFramesPath);
     }
     
+    public final void calibrateIntensityTiled(Element root, String baseDirPath, long memoryBudget)
+    {
+        // decode each frame once into uncompressed stores, so bands can be read back directly
+        System.out.println("Loading images into frame stores: Please Wait ...");
+        FrameStore calibStore = null;
+        FrameStore phaseStore = null;
+        try {
+            File baseDir = new File(baseDirPath);
+            calibStore = FrameStore.create(baseDirPath + "\\" + root.selectSingleNode("/config/folders/calibFrames").getText(),
+                                           File.createTempFile("calibFrames", ".raw", baseDir));
+            phaseStore = FrameStore.create(baseDirPath + "\\" + root.selectSingleNode("/config/folders/phaseFrames").getText(),
+                                           File.createTempFile("phaseFrames", ".raw", baseDir));
+            int nRows = calibStore.getHeight();
+            int nCols = calibStore.getWidth();
+            if (phaseStore.getHeight() != nRows || phaseStore.getWidth() != nCols) {
+                throw new IllegalArgumentException("The calibration and phase images don't have the same size");
+            }
+
+            // the band buffers of one stack are dropped before the other stack's are allocated,
+            // so size the bands for the deeper stack
+            long bytesPerRow = (long) nCols*Math.max(calibStore.getFrameCount(), phaseStore.getFrameCount());
+            int bandRows = (int) Math.max(1, Math.min(nRows, memoryBudget/bytesPerRow));
+            int nBands = (nRows + bandRows - 1)/bandRows;
+            System.out.println("Working in " + nBands + " bands of " + bandRows + " rows");
+            List<BufferedImage> calibBuffers = calibStore.createBand(bandRows);
+
+            // check the stored response model against this folder, band by band
+            List<Integer> calibLevels = Util.parseIntegerArray(root.selectSingleNode("/config/structuredLight/calibLevels").getText());
+            ResponseModel model = findStoredModel(root, nRows, nCols, calibLevels);
+            if (model != null) {
+                int driftStep = getDriftStep(root);
+                double[] sums = new double[2];
+                for (int rowStart = 0; rowStart < nRows; rowStart += bandRows) {
+                    int nBandRows = Math.min(bandRows, nRows - rowStart);
+                    model.accumulateResidual(calibStore.readBand(calibBuffers, rowStart, nBandRows), rowStart, driftStep, sums);
+                }
+                if (hasDrifted(root, ResponseModel.residualOf(sums))) {
+                    model = null;
+                }
+            }
+
+            // or fit a new one, band by band
+            if (model == null) {
+                System.out.println("Performing polynomial fitting: Please Wait ...");
+                CubicFit fit = new CubicFit(nRows, nCols);
+                for (int rowStart = 0; rowStart < nRows; rowStart += bandRows) {
+                    int nBandRows = Math.min(bandRows, nRows - rowStart);
+                    fit.fitBand(calibStore.readBand(calibBuffers, rowStart, nBandRows), calibLevels, rowStart);
+                }
+                model = new ResponseModel(fit, ResponseModel.toArray(calibLevels));
+                storeModel(root, model);
+            }
+
+            // apply fitting to the stores in place, one stack after the other
+            System.out.println("Applying fitting results to images: Please Wait ...");
+            CubicFit P = model.getFit();
+            for (int rowStart = 0; rowStart < nRows; rowStart += bandRows) {
+                int nBandRows = Math.min(bandRows, nRows - rowStart);
+                P.applyBand(calibStore.readBand(calibBuffers, rowStart, nBandRows), rowStart);
+                calibStore.writeBand(calibBuffers, rowStart, nBandRows);
+            }
+            calibBuffers = null;
+            List<BufferedImage> phaseBuffers = phaseStore.createBand(bandRows);
+            for (int rowStart = 0; rowStart < nRows; rowStart += bandRows) {
+                int nBandRows = Math.min(bandRows, nRows - rowStart);
+                P.applyBand(phaseStore.readBand(phaseBuffers, rowStart, nBandRows), rowStart);
+                phaseStore.writeBand(phaseBuffers, rowStart, nBandRows);
+            }
+
+            // save image stacks, one frame at a time
+            System.out.println("Saving images: Please Wait ...");
+            saveStore(calibStore, baseDirPath + "\\" + root.selectSingleNode("/config/folders/calibFitFrames").getText());
+            saveStore(phaseStore, baseDirPath + "\\" + root.selectSingleNode("/config/folders/phaseFitFrames").getText());
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not create the frame stores in: " + baseDirPath);
+        }
+        finally {
+            if (calibStore != null) {
+                calibStore.close();
+            }
+            if (phaseStore != null) {
+                phaseStore.close();
+            }
+        }
+    }
+    
+    public ResponseModel getResponseModel(Element root, List<BufferedImage> calibFrames, List<Integer> calibLevels)
+    {
+        ResponseModel model = findStoredModel(root, calibFrames.get(0).getHeight(), calibFrames.get(0).getWidth(), calibLevels);
+        if (model != null && hasDrifted(root, model.measureResidual(calibFrames, getDriftStep(root)))) {
+            model = null;
+        }
+        if (model == null) {
+            System.out.println("Performing polynomial fitting: Please Wait ...");
+            model = ResponseModel.fitStack(calibFrames, calibLevels);
+            storeModel(root, model);
+        }
+        return model;
+    }
+    
+    public ResponseModel findStoredModel(Element root, int nRows, int nCols, List<Integer> calibLevels)
+    {
+        // a requested refit happens once, for the first folder of the run
+        Node refitNode = root.selectSingleNode("/config/intensityCalibration/refitResponse");
+        boolean isRefitRequested = (refitNode != null) && Boolean.parseBoolean(refitNode.getText());
+        if (responseModel == null && !isRefitRequested) {
+            responseModel = ResponseModel.load(getModelPath(root));
+        }
+
+        if (responseModel == null) {
+            System.out.println(isRefitRequested ? "A refit of the response model was requested" : "There is no stored response model");
+            return null;
+        }
+        if (!responseModel.matches(nRows, nCols, calibLevels)) {
+            System.out.println("The frame size or calibration levels changed since the response model was fit");
+            return null;
+        }
+        return responseModel;
+    }
+    
+    public boolean hasDrifted(Element root, double residual)
+    {
+        // compare the model's error on this folder's calib frames to its own fit residual
+        Node toleranceNode = root.selectSingleNode("/config/intensityCalibration/driftTolerance");
+        double driftTolerance = (toleranceNode == null) ? 2.0 : Double.parseDouble(toleranceNode.getText());
+        double drift = residual - responseModel.getRmsResidual();
+        System.out.println(String.format("Response model drift: %.3f levels (tolerance %.3f)", drift, driftTolerance));
+        if (drift > driftTolerance) {
+            return true;
+        }
+        System.out.println("Reusing the response model: " + getModelPath(root));
+        return false;
+    }
+    
+    public void storeModel(Element root, ResponseModel model)
+    {
+        responseModel = model;
+        System.out.println(String.format("Fit residual: %.3f levels rms, %.3f max, %d singular pixels",
+                           model.rmsResidual, model.maxResidual, model.nSingular));
+        model.save(getModelPath(root));
+        System.out.println("Saved the response model: " + getModelPath(root));
+    }
+    
+    public static String getModelPath(Element root)
+    {
+        // the model is stored once per rig setup, in the base folder
+        Node modelNameNode = root.selectSingleNode("/config/files/responseModel");
+        String modelName = (modelNameNode == null) ? "responseModel.bin" : modelNameNode.getText();
+        return root.selectSingleNode("/config/baseFolder").getText() + "\\" + modelName;
+    }
+    
+    public static int getDriftStep(Element root)
+    {
+        Node stepNode = root.selectSingleNode("/config/intensityCalibration/driftStep");
+        return (stepNode == null) ? 8 : Integer.parseInt(stepNode.getText());
+    }
+    
     public static List<BufferedImage> loadStack(String dirPath) {
         try {
             // get the image names
@@ -114,97 +274,32 @@ public class IntensityCalibration {
     }
     
     
-    public static List<List<RealVector>> polyFitStack(List<BufferedImage> stack, List<Integer> calibLevels) {
-        
-        // compute variables
-        int nRows = stack.get(0).getHeight();
-        int nCols = stack.get(0).getWidth();   
-        
-        // perform curve fitting on the stack
-        int polyFitDeg = 3;
-        int nCalibLevels = calibLevels.size();
-        RealMatrix A = MatrixUtils.createRealMatrix(nCalibLevels, polyFitDeg + 1);
-        double[] calibLevelDouble = new double[nCalibLevels];
-        for (int i = 0; i < nCalibLevels; i++){
-            calibLevelDouble[i] = (double)calibLevels.get(i);
+    public static void saveStore(FrameStore store, String saveDirPath) {
+        try {
+            // create directory if needed
+            File saveDir = new File(saveDirPath);
+            if (! saveDir.exists()){
+                FileUtils.forceMkdir(saveDir);
+            }
+
+            // save the images
+            for (Integer i = 0; i < store.getFrameCount(); i++) {
+                File newFile = new File(saveDirPath + "\\" + String.format("%03d.png", i));
+                ImageIO.write(store.readFrame(i), "png", newFile);
+            }
         }
-        RealVector B = MatrixUtils.createRealVector(calibLevelDouble);       
-        RealVector Z = MatrixUtils.createRealVector(new double[nCalibLevels]);
-        List<List<RealVector>> P = new ArrayList<>();      
-        for (int row = 0; row < nRows; row++) {
-            List<RealVector> Prow = new ArrayList<>();
-            for (int col = 0; col < nCols; col++) {
-                // extract a Z profile
-                for (int slice = 0; slice < nCalibLevels; slice++){                    
-                    double[] newEntryArray = new double[1];
-                    stack.get(slice).getRaster().getPixel(col, row, newEntryArray);
-                    Z.setEntry(slice, newEntryArray[0]);                   
-                }
-                // build the "A" matrix
-                int Acol = 0;
-                for (double order = polyFitDeg; Acol < polyFitDeg + 1; order--, Acol++){
-                    A.setColumnVector(Acol, Z.map(new Power(order)));
-                }
-                // solve "A*x = B"
-                RealVector p = MatrixUtils.createRealVector(new double[polyFitDeg+1]);
-                try {
-                   DecompositionSolver solver = new QRDecomposition(A).getSolver();
-                   p = solver.solve(B); 
-                }
-                catch (SingularMatrixException e) {                   
-                }
-                
-                Prow.add(p);                
+        catch (IOException exp) {
+            for (StackTraceElement el: exp.getStackTrace()) {
+                System.out.println(el);
             }
-            P.add(Prow);
+            throw new RuntimeException("Could not save the image stack.");
         }
-        return P;
     }
     
-    public static List<BufferedImage> polyValStack(List<List<RealVector>> P, List<BufferedImage> stack) {    
-        // compute variables
-        int nRows = stack.get(0).getHeight();
-        int nCols = stack.get(0).getWidth();
-        int nSlices = stack.size();
-        int polyFitDeg = P.get(0).get(0).getDimension() - 1;
-
-        // apply fitting the images
+    public static List<BufferedImage> polyValStack(CubicFit P, List<BufferedImage> stack) {    
+        // apply fitting the images, in place
         List<BufferedImage> stackFitted = new ArrayList<>(stack);      
-        RealVector Z = MatrixUtils.createRealVector(new double[nSlices]);
-        RealMatrix A = MatrixUtils.createRealMatrix(nSlices, polyFitDeg + 1);
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                
-                // extract a Z profile
-                for (int slice = 0; slice < nSlices; slice++){                    
-                    double[] newEntryArray = new double[1];
-                    stackFitted.get(slice).getRaster().getPixel(col, row, newEntryArray); 
-                    Z.setEntry(slice, newEntryArray[0]);
-                }
-                
-                // build the "A" matrix
-                int Acol = 0;
-                for (double order = polyFitDeg; Acol < polyFitDeg + 1; order--, Acol++){
-                    A.setColumnVector(Acol, Z.map(new Power(order)));
-                }
-                
-                // compute fitted Z profile
-                RealVector Zfitted = A.operate(P.get(row).get(col));
-                
-                // store fitted Z profile
-                for (int slice = 0; slice < nSlices; slice++){               
-                    double[] newEntryArray = {Zfitted.getEntry(slice)};
-                    int newEntry = (int)Math.round(newEntryArray[0]);
-                    if (newEntry > 255) {
-                        newEntry = 255;
-                    }
-                    else if (newEntry < 0){
-                        newEntry = 0;
-                    }
-                    stackFitted.get(slice).getRaster().setPixel(col, row, new int[]{newEntry});
-                }                
-            }
-        }
+        P.applyStack(stackFitted);
         
         return stackFitted;
     }
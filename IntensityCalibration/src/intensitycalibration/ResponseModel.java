@@ -0,0 +1,189 @@
+package intensitycalibration;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+public class ResponseModel {
+
+    static final int magic = 0x5253504D; // "RSPM"
+    static final int version = 1;
+
+    CubicFit fit;
+    int[] calibLevels;
+
+    // summary of the per-pixel fit residuals, in calibration levels
+    double rmsResidual;
+    double maxResidual;
+    int nSingular;
+
+    public ResponseModel(CubicFit fit, int[] calibLevels) {
+        this.fit = fit;
+        this.calibLevels = calibLevels;
+        summarize();
+    }
+
+    public CubicFit getFit() {
+        return fit;
+    }
+
+    public double getRmsResidual() {
+        return rmsResidual;
+    }
+
+    public static ResponseModel fitStack(List<BufferedImage> calibFrames, List<Integer> calibLevels)
+    {
+        CubicFit fit = CubicFit.fitStack(calibFrames, calibLevels);
+        return new ResponseModel(fit, toArray(calibLevels));
+    }
+
+    final void summarize()
+    {
+        double sum = 0;
+        int nSolved = 0;
+        maxResidual = 0;
+        nSingular = 0;
+        for (float residual: fit.residuals) {
+            if (Float.isNaN(residual)) {
+                nSingular += 1;
+                continue;
+            }
+            sum += residual*residual;
+            maxResidual = Math.max(maxResidual, residual);
+            nSolved += 1;
+        }
+        rmsResidual = (nSolved > 0) ? Math.sqrt(sum/nSolved) : 0;
+    }
+
+    public boolean matches(int nRows, int nCols, List<Integer> calibLevels)
+    {
+        if (fit.nRows != nRows || fit.nCols != nCols || this.calibLevels.length != calibLevels.size()) {
+            return false;
+        }
+        for (int i = 0; i < this.calibLevels.length; i++) {
+            if (this.calibLevels[i] != calibLevels.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public double measureResidual(List<BufferedImage> calibFrames, int step)
+    {
+        // rms error of the model on every step-th pixel of new calibration frames
+        double[] sums = new double[2];
+        accumulateResidual(calibFrames, 0, step, sums);
+        return residualOf(sums);
+    }
+
+    public void accumulateResidual(List<BufferedImage> band, int rowOffset, int step, double[] sums)
+    {
+        // add the squared errors and sample count of a band of calibration frames to sums
+        int nCols = fit.nCols;
+        int nBandRows = band.get(0).getHeight();
+        int[] rowSamples = new int[nCols];
+        int firstRow = ((rowOffset + step - 1)/step)*step - rowOffset;
+        for (int slice = 0; slice < calibLevels.length; slice++) {
+            Raster raster = band.get(slice).getRaster();
+            for (int row = firstRow; row < nBandRows; row += step) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + row, nCols, 1, 0, rowSamples);
+                for (int col = 0; col < nCols; col += step) {
+                    int pixel = (row + rowOffset)*nCols + col;
+                    if (Float.isNaN(fit.residuals[pixel])) {
+                        continue;
+                    }
+                    double diff = fit.evaluate(pixel, rowSamples[col]) - calibLevels[slice];
+                    sums[0] += diff*diff;
+                    sums[1] += 1;
+                }
+            }
+        }
+    }
+
+    public static double residualOf(double[] sums) {
+        return (sums[1] > 0) ? Math.sqrt(sums[0]/sums[1]) : 0;
+    }
+
+    public static ResponseModel load(String path)
+    {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != magic || buffer.getInt() != version) {
+                System.out.println("Ignoring the response model, unknown format: " + path);
+                return null;
+            }
+            int nRows = buffer.getInt();
+            int nCols = buffer.getInt();
+            int nCoeffs = buffer.getInt();
+            int nLevels = buffer.getInt();
+            if (nCoeffs != CubicFit.nCoeffs) {
+                System.out.println("Ignoring the response model, it is not a cubic fit: " + path);
+                return null;
+            }
+            int[] calibLevels = new int[nLevels];
+            for (int i = 0; i < nLevels; i++) {
+                calibLevels[i] = buffer.getInt();
+            }
+
+            // the coefficient and residual fields follow as plain row-major floats
+            CubicFit fit = new CubicFit(nRows, nCols);
+            buffer.asFloatBuffer().get(fit.coeffs).get(fit.residuals);
+            return new ResponseModel(fit, calibLevels);
+        }
+        catch (IOException | RuntimeException exp) {
+            System.out.println("Ignoring the response model, could not read it: " + path);
+            return null;
+        }
+    }
+
+    public void save(String path)
+    {
+        int nLevels = calibLevels.length;
+        ByteBuffer header = ByteBuffer.allocate(4*(6 + nLevels));
+        header.putInt(magic);
+        header.putInt(version);
+        header.putInt(fit.nRows);
+        header.putInt(fit.nCols);
+        header.putInt(CubicFit.nCoeffs);
+        header.putInt(nLevels);
+        for (int level: calibLevels) {
+            header.putInt(level);
+        }
+        header.flip();
+
+        ByteBuffer data = ByteBuffer.allocateDirect(4*(fit.coeffs.length + fit.residuals.length));
+        data.asFloatBuffer().put(fit.coeffs).put(fit.residuals);
+
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not save the response model: " + path);
+        }
+    }
+
+    static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+}
@@ -0,0 +1,102 @@
+package phasemap;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class FramePrefetcher {
+
+    // hands out the frames of a list of image paths in order, while the decoder pool
+    // is already reading up to depth frames ahead
+
+    List<String> paths;
+    ExecutorService decoders;
+    int depth;
+    Deque<Future<BufferedImage>> pending;
+    int nextToSubmit;
+
+    // time spent decoding, and time the consumer spent waiting on a frame that was not ready yet
+    long decodeNanos;
+    long waitNanos;
+
+    public FramePrefetcher(List<String> paths, ExecutorService decoders, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("The prefetch depth must be at least 1");
+        }
+        this.paths = paths;
+        this.decoders = decoders;
+        this.depth = depth;
+        this.pending = new ArrayDeque<>(depth);
+        this.nextToSubmit = 0;
+        while (pending.size() < depth && nextToSubmit < paths.size()) {
+            submitNext();
+        }
+    }
+
+    final void submitNext()
+    {
+        String path = paths.get(nextToSubmit);
+        pending.addLast(decoders.submit(() -> {
+            long start = System.nanoTime();
+            BufferedImage image = PhaseMap_Waves.loadImage(path);
+            addDecodeTime(System.nanoTime() - start);
+            return image;
+        }));
+        nextToSubmit += 1;
+    }
+
+    synchronized void addDecodeTime(long nanos) {
+        decodeNanos += nanos;
+    }
+
+    public synchronized double getDecodeSeconds() {
+        return decodeNanos/1e9;
+    }
+
+    public double getWaitSeconds() {
+        return waitNanos/1e9;
+    }
+
+    public BufferedImage next()
+    {
+        Future<BufferedImage> future = pending.pollFirst();
+        if (future == null) {
+            throw new IllegalStateException("There are no more frames to prefetch");
+        }
+
+        // keep the queue full before blocking on this frame
+        if (nextToSubmit < paths.size()) {
+            submitNext();
+        }
+        long start = System.nanoTime();
+        try {
+            return future.get();
+        }
+        catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a frame");
+        }
+        catch (ExecutionException exp) {
+            if (exp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exp.getCause();
+            }
+            throw new RuntimeException("Can't open the images");
+        }
+        finally {
+            waitNanos += System.nanoTime() - start;
+        }
+    }
+
+    public void cancel()
+    {
+        for (Future<BufferedImage> future: pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+}
@@ -0,0 +1,177 @@
+package phasemap;
+
+import config.RowBands;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+public class GrayCodeDecoder {
+
+    // decodes the binary Gray-code frames of one orientation into the period index of every pixel,
+    // to unwrap the phase of a single wave set whose wavelength is the stripe width
+    //
+    // bits 0 .. nBits-1 are the Gray code of the stripe index s = floor((x + 0.5)/stripeWidth), most
+    // significant first, and bit nBits is the last bit of the Gray code of floor(2(x + 0.5)/stripeWidth),
+    // so the stripe edges of the first code fall in the middle of the half-width stripes of the second
+    //
+    // each frame is thresholded against the mean of the wave frames into one plane of 64-pixel words,
+    // and the codes are assembled from the planes with bitwise operations; rows are padded to whole
+    // words so row bands never share a word
+
+    int nRows;
+    int nCols;
+    int nBits;
+    int wordsPerRow;
+    double stripeWidth;
+    double minContrast;
+
+    // one plane per bit, and the pixels that had enough contrast in every frame so far
+    long[][] planes;
+    boolean[] hasPlane;
+    long[] valid;
+
+    // the wave frames seen so far, for the per-pixel threshold
+    float[] referenceSum;
+    int nReferences;
+
+    public GrayCodeDecoder(int nRows, int nCols, int nBits, double stripeWidth, double minContrast) {
+        if (nBits < 1 || nBits > 30) {
+            throw new IllegalArgumentException("The Gray code must have between 1 and 30 bits, found " + nBits);
+        }
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.nBits = nBits;
+        this.wordsPerRow = (nCols + 63) >>> 6;
+        this.stripeWidth = stripeWidth;
+        this.minContrast = minContrast;
+        this.planes = new long[nBits + 1][];
+        this.hasPlane = new boolean[nBits + 1];
+        this.valid = new long[nRows*wordsPerRow];
+        this.referenceSum = new float[nRows*nCols];
+        this.nReferences = 0;
+
+        // only the columns of the image start out valid, not the padding
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            for (int row = rowStart; row < rowStop; row++) {
+                Arrays.fill(valid, row*wordsPerRow, (row + 1)*wordsPerRow, -1L);
+                if ((nCols & 63) != 0) {
+                    valid[(row + 1)*wordsPerRow - 1] = (1L << nCols) - 1;
+                }
+            }
+        });
+    }
+
+    public double getStripeWidth() {
+        return stripeWidth;
+    }
+
+    public void addReference(Raster raster)
+    {
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int[] rowSamples = new int[nCols];
+            for (int row = rowStart; row < rowStop; row++) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + row, nCols, 1, 0, rowSamples);
+                int pixel = row*nCols;
+                for (int col = 0; col < nCols; col++, pixel++) {
+                    referenceSum[pixel] += rowSamples[col];
+                }
+            }
+        });
+        nReferences += 1;
+    }
+
+    public void addFrame(Raster raster, int bit)
+    {
+        if (bit < 0 || bit > nBits) {
+            throw new IllegalArgumentException("The Gray-code bit must be between 0 and " + nBits + ", found " + bit);
+        }
+        if (nReferences == 0) {
+            throw new IllegalArgumentException("The Gray-code frames must come after a wave set of the same orientation");
+        }
+        long[] plane = new long[nRows*wordsPerRow];
+        float scale = 1.0f/nReferences;
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int[] rowSamples = new int[nCols];
+            for (int row = rowStart; row < rowStop; row++) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + row, nCols, 1, 0, rowSamples);
+                int pixel = row*nCols;
+                int wordStart = row*wordsPerRow;
+                for (int w = 0; w < wordsPerRow; w++) {
+                    long word = 0;
+                    long weak = 0;
+                    int colStop = Math.min(nCols - (w << 6), 64);
+                    for (int j = 0; j < colStop; j++, pixel++) {
+                        float contrast = rowSamples[(w << 6) + j] - scale*referenceSum[pixel];
+                        word |= ((contrast > 0) ? 1L : 0L) << j;
+                        weak |= ((Math.abs(contrast) < minContrast) ? 1L : 0L) << j;
+                    }
+                    plane[wordStart + w] = word;
+                    valid[wordStart + w] &= ~weak;
+                }
+            }
+        });
+        planes[bit] = plane;
+        hasPlane[bit] = true;
+    }
+
+    public void unwrap(double[][] phaseMap, double nullPhase)
+    {
+        for (int bit = 0; bit <= nBits; bit++) {
+            if (!hasPlane[bit]) {
+                throw new IllegalArgumentException("The Gray-code frame of bit " + bit + " is missing");
+            }
+        }
+
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            int[] stripes = new int[nCols];
+            int[] halfBits = new int[nCols];
+            for (int row = rowStart; row < rowStop; row++) {
+                int wordStart = row*wordsPerRow;
+                Arrays.fill(stripes, 0);
+                for (int w = 0; w < wordsPerRow; w++) {
+
+                    // Gray to binary down the bits, 64 pixels at a time
+                    long binary = 0;
+                    int colStart = w << 6;
+                    int colStop = Math.min(nCols, colStart + 64);
+                    for (int bit = 0; bit <= nBits; bit++) {
+                        binary ^= planes[bit][wordStart + w];
+                        long word = binary;
+                        if (bit < nBits) {
+                            for (int col = colStart; col < colStop; col++, word >>>= 1) {
+                                stripes[col] = (stripes[col] << 1) | (int) (word & 1);
+                            }
+                        }
+                        else {
+                            for (int col = colStart; col < colStop; col++, word >>>= 1) {
+                                halfBits[col] = (int) (word & 1);
+                            }
+                        }
+                    }
+                }
+
+                // near a stripe edge the half-width code decides the period, elsewhere the stripe code does
+                double[] phaseRow = phaseMap[row];
+                for (int col = 0; col < nCols; col++) {
+                    if (phaseRow[col] == nullPhase || (valid[wordStart + (col >>> 6)] & (1L << col)) == 0) {
+                        phaseRow[col] = nullPhase;
+                        continue;
+                    }
+                    double phase = phaseRow[col] - 2*Math.PI*Math.floor(phaseRow[col]/(2*Math.PI));
+                    int halfStripe = 2*stripes[col] + halfBits[col];
+                    int period;
+                    if (phase < Math.PI/2) {
+                        period = (halfStripe + 1) >> 1;
+                    }
+                    else if (phase >= 3*Math.PI/2) {
+                        period = ((halfStripe + 1) >> 1) - 1;
+                    }
+                    else {
+                        period = stripes[col];
+                    }
+                    phaseRow[col] = phase + 2*Math.PI*period;
+                }
+            }
+        });
+    }
+
+}
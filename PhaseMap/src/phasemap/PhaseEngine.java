@@ -0,0 +1,249 @@
+package phasemap;
+
+import config.RowBands;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.math3.util.FastMath;
+
+public class PhaseEngine {
+
+    // accumulates N-step phase shifted wave sets of one orientation into an unwrapped phase map,
+    // one frame at a time, coarsest wavelength first
+
+    int nRows;
+    int nCols;
+    double nullPhase;
+    double minAmplitude;
+
+    // running sums of the current set, row-major, in the sign convention of the 4-step formula:
+    // for 4 steps sinSum = I[3] - I[1] and cosSum = I[2] - I[0]
+    double[] sinSum;
+    double[] cosSum;
+
+    // weights of each step of the current set
+    int nSteps;
+    int step;
+    double[] sinWeights;
+    double[] cosWeights;
+
+    // the phase map unwrapped up to the last finished set, and that set's wavelength
+    double[][] phaseMap;
+    double waveLength;
+    int nSets;
+    List<Double> waveLengths;
+
+    // the fringe amplitude of each pixel in the last finished set, row-major
+    float[] modulation;
+
+    // for 8-bit frames and integer weights both sums are integers in [-255, 255], so the thresholded
+    // phase of every (b, a) pair comes from a table instead of atan2 and sqrt
+    static final int maxGray = 255;
+    static final int tableSize = 2*maxGray + 1;
+    boolean isIntegral;
+    double[] phaseTable;
+    float[] amplitudeTable;
+
+    public PhaseEngine(int nRows, int nCols, double minAmplitude, double nullPhase) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.minAmplitude = minAmplitude;
+        this.nullPhase = nullPhase;
+        this.sinSum = new double[nRows*nCols];
+        this.cosSum = new double[nRows*nCols];
+        this.modulation = new float[nRows*nCols];
+        this.nSets = 0;
+        this.waveLengths = new ArrayList<>();
+    }
+
+    public double[][] getPhaseMap() {
+        return phaseMap;
+    }
+
+    public float[] getModulation() {
+        return modulation;
+    }
+
+    public int getSetCount() {
+        return nSets;
+    }
+
+    public double[] getWaveLengths() {
+        double[] array = new double[waveLengths.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = waveLengths.get(i);
+        }
+        return array;
+    }
+
+    public void startSet(int nSteps)
+    {
+        if (nSteps < 3) {
+            throw new IllegalArgumentException("A wave set needs at least 3 phase steps, found " + nSteps);
+        }
+        this.nSteps = nSteps;
+        this.step = 0;
+        this.sinWeights = new double[nSteps];
+        this.cosWeights = new double[nSteps];
+        for (int k = 0; k < nSteps; k++) {
+            double angle = 2*Math.PI*k/nSteps;
+            sinWeights[k] = snapWeight(-Math.sin(angle));
+            cosWeights[k] = snapWeight(-Math.cos(angle));
+        }
+        Arrays.fill(sinSum, 0);
+        Arrays.fill(cosSum, 0);
+
+        // the sums stay within the table when the weights are integers that add and subtract at most one frame
+        isIntegral = isTableRange(sinWeights) && isTableRange(cosWeights);
+    }
+
+    static boolean isTableRange(double[] weights)
+    {
+        double positive = 0;
+        double negative = 0;
+        for (double weight: weights) {
+            if (weight != Math.rint(weight)) {
+                return false;
+            }
+            positive += Math.max(weight, 0);
+            negative += Math.min(weight, 0);
+        }
+        return positive <= 1 && negative >= -1;
+    }
+
+    static double snapWeight(double weight)
+    {
+        // exact weights where they should be, so the 4-step sums are exact differences of the frames
+        double rounded = Math.rint(weight);
+        return (Math.abs(weight - rounded) < 1e-12) ? rounded + 0.0 : weight;
+    }
+
+    public void addFrame(Raster raster)
+    {
+        if (step >= nSteps) {
+            throw new IllegalStateException("The wave set already has all of its " + nSteps + " frames");
+        }
+        int dataType = raster.getDataBuffer().getDataType();
+        if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE ||
+            raster.getSampleModel().getSampleSize(0) > 8) {
+            isIntegral = false;
+        }
+        double sinWeight = sinWeights[step];
+        double cosWeight = cosWeights[step];
+        RowBands.forEach(nRows, (rowStart, rowStop) -> addRows(raster, sinWeight, cosWeight, rowStart, rowStop));
+        step += 1;
+    }
+
+    void addRows(Raster raster, double sinWeight, double cosWeight, int rowStart, int rowStop)
+    {
+        int[] rowSamples = new int[nCols];
+        for (int row = rowStart; row < rowStop; row++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + row, nCols, 1, 0, rowSamples);
+            int pixel = row*nCols;
+            for (int col = 0; col < nCols; col++, pixel++) {
+                double gray = rowSamples[col];
+                sinSum[pixel] += gray*sinWeight;
+                cosSum[pixel] += gray*cosWeight;
+            }
+        }
+    }
+
+    public void finishSet(double newWaveLength)
+    {
+        if (step != nSteps) {
+            throw new IllegalStateException("The wave set ended after " + step + " of its " + nSteps + " frames");
+        }
+
+        // the amplitude is scaled to match the 4-step formula, so minAmplitude keeps its meaning
+        double amplitudeScale = 4.0/nSteps;
+        boolean isFirstSet = (phaseMap == null);
+        if (isFirstSet) {
+            phaseMap = new double[nRows][nCols];
+        }
+        else if (newWaveLength > waveLength) {
+            throw new IllegalArgumentException("The wave sets must go from the longest to the shortest wavelength");
+        }
+        double ratio = isFirstSet ? 0 : waveLength/newWaveLength;
+        if (isIntegral && phaseTable == null) {
+            phaseTable = buildPhaseTable(amplitudeScale);
+            amplitudeTable = buildAmplitudeTable(amplitudeScale);
+        }
+
+        RowBands.forEach(nRows, (rowStart, rowStop) -> finishRows(isFirstSet, ratio, amplitudeScale, rowStart, rowStop));
+        waveLength = newWaveLength;
+        waveLengths.add(newWaveLength);
+        nSets += 1;
+    }
+
+    void finishRows(boolean isFirstSet, double ratio, double amplitudeScale, int rowStart, int rowStop)
+    {
+        for (int row = rowStart; row < rowStop; row++) {
+            double[] phaseRow = phaseMap[row];
+            int pixel = row*nCols;
+            for (int col = 0; col < nCols; col++, pixel++) {
+                double newPhase;
+                if (isIntegral) {
+                    int index = ((int) sinSum[pixel] + maxGray)*tableSize + (int) cosSum[pixel] + maxGray;
+                    newPhase = phaseTable[index];
+                    modulation[pixel] = amplitudeTable[index];
+                }
+                else {
+                    newPhase = computePhase(sinSum[pixel], cosSum[pixel], amplitudeScale);
+                    modulation[pixel] = (float) computeAmplitude(sinSum[pixel], cosSum[pixel], amplitudeScale);
+                }
+
+                // unwrap against the coarser map, one wavelength at a time
+                if (isFirstSet) {
+                    phaseRow[col] = newPhase;
+                }
+                else if (phaseRow[col] == nullPhase || newPhase == nullPhase) {
+                    phaseRow[col] = nullPhase;
+                }
+                else {
+                    double phaseOffset = Math.round((ratio*phaseRow[col] - newPhase)/(2*Math.PI));
+                    phaseRow[col] = newPhase + 2*Math.PI*phaseOffset;
+                }
+            }
+        }
+    }
+
+    static double computeAmplitude(double b, double a, double amplitudeScale)
+    {
+        return amplitudeScale*Math.sqrt(a*a + b*b);
+    }
+
+    double computePhase(double b, double a, double amplitudeScale)
+    {
+        if (computeAmplitude(b, a, amplitudeScale) < minAmplitude) {
+            return nullPhase;
+        }
+        return Math.PI + FastMath.atan2(b, a);
+    }
+
+    double[] buildPhaseTable(double amplitudeScale)
+    {
+        // indexed by (b + 255)*511 + (a + 255), with the amplitude threshold already applied
+        double[] table = new double[tableSize*tableSize];
+        for (int b = -maxGray; b <= maxGray; b++) {
+            for (int a = -maxGray; a <= maxGray; a++) {
+                table[(b + maxGray)*tableSize + a + maxGray] = computePhase(b, a, amplitudeScale);
+            }
+        }
+        return table;
+    }
+
+    static float[] buildAmplitudeTable(double amplitudeScale)
+    {
+        // same indexing as the phase table
+        float[] table = new float[tableSize*tableSize];
+        for (int b = -maxGray; b <= maxGray; b++) {
+            for (int a = -maxGray; a <= maxGray; a++) {
+                table[(b + maxGray)*tableSize + a + maxGray] = (float) computeAmplitude(b, a, amplitudeScale);
+            }
+        }
+        return table;
+    }
+
+}
@@ -0,0 +1,132 @@
+package phasemap;
+
+import config.RowBands;
+
+public class PhaseFilter {
+
+    // removes speckle from an unwrapped phase map with a masked separable median: first the median of
+    // the valid pixels in a (2*radius + 1) run along each row, then the median of those row medians
+    // down each column; a valid pixel that differs from the result by more than the tolerance is
+    // replaced by it, and invalid pixels are copied as they are and never feed a median
+    //
+    // both passes slide a sorted window along the map, so each step is one insertion and one removal
+    // instead of a sort, and the cost grows with the radius, not with the window's area
+
+    public static double[][] median(double[][] phaseMap, ValidityMask mask, int radius, double tolerance)
+    {
+        if (radius < 1) {
+            throw new IllegalArgumentException("The median radius must be at least 1");
+        }
+        int nRows = phaseMap.length;
+        int nCols = phaseMap[0].length;
+        int windowSize = 2*radius + 1;
+
+        // strips of columns are filtered on their own, each walking down the rows: a row's medians are
+        // taken as it enters the column windows and kept in a ring until it leaves them, so nothing
+        // the size of the map is held besides the output
+        double[][] filtered = new double[nRows][nCols];
+        RowBands.forEach(nCols, (colStart, colStop) -> {
+            int nStripCols = colStop - colStart;
+            double[][] rowMedians = new double[windowSize][nStripCols];
+            double[] rowWindow = new double[windowSize];
+            double[] windows = new double[nStripCols*windowSize];
+            int[] counts = new int[nStripCols];
+            for (int enter = 0; enter < nRows + radius; enter++) {
+                if (enter < nRows) {
+                    double[] medians = rowMedians[enter % windowSize];
+                    medianRow(phaseMap[enter], mask, enter, radius, colStart, colStop, rowWindow, medians);
+                    for (int col = colStart; col < colStop; col++) {
+                        if (mask.isValid(enter, col)) {
+                            int window = col - colStart;
+                            insert(windows, window*windowSize, counts[window]++, medians[col - colStart]);
+                        }
+                    }
+                }
+                int row = enter - radius;
+                if (row < 0) {
+                    continue;
+                }
+                double[] rowData = phaseMap[row];
+                double[] filteredRow = filtered[row];
+                for (int col = colStart; col < colStop; col++) {
+                    filteredRow[col] = rowData[col];
+                    if (mask.isValid(row, col)) {
+                        int window = col - colStart;
+                        double median = median(windows, window*windowSize, counts[window]);
+                        if (Math.abs(rowData[col] - median) > tolerance) {
+                            filteredRow[col] = median;
+                        }
+                    }
+                }
+                int leave = row - radius;
+                if (leave >= 0) {
+                    double[] medians = rowMedians[leave % windowSize];
+                    for (int col = colStart; col < colStop; col++) {
+                        if (mask.isValid(leave, col)) {
+                            int window = col - colStart;
+                            delete(windows, window*windowSize, counts[window]--, medians[col - colStart]);
+                        }
+                    }
+                }
+            }
+        });
+        return filtered;
+    }
+
+    static void medianRow(double[] rowData, ValidityMask mask, int row, int radius, int colStart, int colStop,
+                          double[] window, double[] medians)
+    {
+        // the medians along the row for the strip's valid pixels, sliding in from radius columns before it
+        int nCols = rowData.length;
+        int count = 0;
+        for (int col = Math.max(colStart - radius, 0); col < Math.min(colStart + radius, nCols); col++) {
+            if (mask.isValid(row, col)) {
+                insert(window, 0, count++, rowData[col]);
+            }
+        }
+        for (int col = colStart; col < colStop; col++) {
+            int enter = col + radius;
+            if (enter < nCols && mask.isValid(row, enter)) {
+                insert(window, 0, count++, rowData[enter]);
+            }
+            if (mask.isValid(row, col)) {
+                medians[col - colStart] = median(window, 0, count);
+            }
+            int leave = col - radius;
+            if (leave >= 0 && mask.isValid(row, leave)) {
+                delete(window, 0, count--, rowData[leave]);
+            }
+        }
+    }
+
+    // a window is count values kept in ascending order from offset; it is short, so an insertion step
+    // that shifts in place beats a binary search and an array copy
+
+    static void insert(double[] values, int offset, int count, double value)
+    {
+        int index = offset + count;
+        while (index > offset && values[index - 1] > value) {
+            values[index] = values[index - 1];
+            index--;
+        }
+        values[index] = value;
+    }
+
+    static void delete(double[] values, int offset, int count, double value)
+    {
+        // the value was inserted before, so the scan stops on an equal one
+        int index = offset;
+        while (values[index] < value) {
+            index++;
+        }
+        for (int last = offset + count - 1; index < last; index++) {
+            values[index] = values[index + 1];
+        }
+    }
+
+    static double median(double[] values, int offset, int count) {
+        int middle = offset + count/2;
+        return ((count & 1) == 1) ? values[middle] : 0.5*(values[middle - 1] + values[middle]);
+    }
+
+}
@@ -0,0 +1,96 @@
+package phasemap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class PhaseMapFile {
+
+    // binary phase map, little-endian:
+    //   int magic, int version, int nRows, int nCols, int dataType, int dataOffset,
+    //   double nullPhase, int nWaveLengths, double[nWaveLengths] waveLengths,
+    //   then nRows*nCols row-major values at dataOffset (a multiple of 8)
+    // CalibrationGridPoints.PhaseMapFile reads this format
+
+    static final int magic = 0x50484D50; // "PHMP"
+    static final int version = 1;
+    static final int typeFloat32 = 1;
+    static final int typeFloat64 = 2;
+
+    public static int parseDataType(String name)
+    {
+        if (name.equals("float32")) {
+            return typeFloat32;
+        }
+        if (name.equals("float64")) {
+            return typeFloat64;
+        }
+        throw new IllegalArgumentException("Unknown phase map data type: " + name);
+    }
+
+    public static void write(double[][] array, String folder, String fileName, int dataType,
+                             double nullPhase, double[] waveLengths)
+    {
+        // create the folder if necessary
+        PhaseMap_Waves.createFolder(folder);
+
+        int nRows = array.length;
+        int nCols = array[0].length;
+        int headerSize = 4*6 + 8 + 4 + 8*waveLengths.length;
+        int dataOffset = (headerSize + 7)/8*8;
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(magic);
+        header.putInt(version);
+        header.putInt(nRows);
+        header.putInt(nCols);
+        header.putInt(dataType);
+        header.putInt(dataOffset);
+        header.putDouble(nullPhase);
+        header.putInt(waveLengths.length);
+        for (double waveLength: waveLengths) {
+            header.putDouble(waveLength);
+        }
+        header.clear();
+
+        // one row at a time through a reused direct buffer
+        int bytesPerValue = (dataType == typeFloat32) ? 4 : 8;
+        ByteBuffer rowBuffer = ByteBuffer.allocateDirect(nCols*bytesPerValue).order(ByteOrder.LITTLE_ENDIAN);
+
+        String fullPath = folder + "\\" + fileName;
+        try (FileChannel channel = FileChannel.open(new File(fullPath).toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            for (double[] rowData: array) {
+                rowBuffer.clear();
+                if (dataType == typeFloat32) {
+                    for (double rowItem: rowData) {
+                        rowBuffer.putFloat((float) rowItem);
+                    }
+                }
+                else {
+                    for (double rowItem: rowData) {
+                        rowBuffer.putDouble(rowItem);
+                    }
+                }
+                rowBuffer.flip();
+                writeFully(channel, rowBuffer);
+            }
+        }
+        catch (IOException exp) {
+            for (StackTraceElement elem: exp.getStackTrace()) {
+                System.out.println(elem);
+            }
+            throw new RuntimeException("Can't write the array");
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package phasemap;
 
+import config.RowBands;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -50,7 +51,36 @@ public class PhaseMap_StripesAndWaves {
         double[][][] waveBuffer = new double[nRows][nCols][nWaves];
         int waveIndex = 0;
         List<Integer> calibLevels = Util.parseIntegerArray(e.selectSingleNode("/config/structuredLight/calibLevels").getText());
-        for (int i = 0; i < phaseFrameConfigList.size(); i++) {
+
+        // parse the frame configs once, with a gray level to stripe index table for each stripe frame
+        int nFrames = phaseFrameConfigList.size();
+        String[] frameTypes = new String[nFrames];
+        String[] orientations = new String[nFrames];
+        boolean[] isLastofSets = new boolean[nFrames];
+        short[][] stripeTables = new short[nFrames][];
+        double[] phasePerStripes = new double[nFrames];
+        for (int i = 0; i < nFrames; i++) {
+            Node phaseFrameConfig = phaseFrameConfigList.get(i);
+            frameTypes[i] = phaseFrameConfig.selectSingleNode("type").getText();
+            if (frameTypes[i].equals("stripe")) {
+                List<Integer> levelIndices = Util.parseIntegerArray(phaseFrameConfig.selectSingleNode("levelIndices").getText());
+                List<Integer> levelSet = new ArrayList<>();
+                for (Integer index: levelIndices) {
+                    levelSet.add(calibLevels.get(index));
+                }
+                stripeTables[i] = buildStripeTable(levelSet);
+                phasePerStripes[i] = Double.parseDouble(phaseFrameConfig.selectSingleNode("phasePerStripe").getText());
+                orientations[i] = phaseFrameConfig.selectSingleNode("orientation").getText();
+            }
+            else if (frameTypes[i].equals("wave")) {
+                isLastofSets[i] = Boolean.parseBoolean(phaseFrameConfig.selectSingleNode("isLastofSet").getText());
+                if (isLastofSets[i]) {
+                    orientations[i] = phaseFrameConfig.selectSingleNode("orientation").getText();
+                }
+            }
+        }
+
+        for (int i = 0; i < nFrames; i++) {
             
             System.out.println("Now analyzing image: " + i);
             
@@ -59,78 +89,65 @@ public class PhaseMap_StripesAndWaves {
             BufferedImage image = loadImage(phaseFitFramesDirPath + "\\" + name);
             WritableRaster raster = image.getRaster();
 
-            // get the image config
-            Node phaseFrameConfig = phaseFrameConfigList.get(i);           
-
             // found new stripe frame
-            if (phaseFrameConfig.selectSingleNode("type").getText().equals("stripe")) {
+            if (frameTypes[i].equals("stripe")) {
 
-                // compute the new phase per stripe
-                List<Integer> levelIndices = Util.parseIntegerArray(phaseFrameConfig.selectSingleNode("levelIndices").getText());
-                List<Integer> levelSet = new ArrayList<>();
-                for (Integer index: levelIndices) {
-                    levelSet.add(calibLevels.get(index));
+                // the stripe phases go into the map of this orientation
+                double[][] phaseMap = selectPhaseMap(orientations[i], hPhaseMap, vPhaseMap);
+                if (phaseMap == null) {
+                    continue;
+                }
+                if (raster.getSampleModel().getSampleSize(0) > 8) {
+                    throw new IllegalArgumentException("The stripe frames must be 8-bit images: " + name);
                 }
-                Double phasePerStripe = Double.parseDouble(phaseFrameConfig.selectSingleNode("phasePerStripe").getText());
-                String orientation = phaseFrameConfig.selectSingleNode("orientation").getText();
+                short[] stripeTable = stripeTables[i];
+                double phasePerStripe = phasePerStripes[i];
                 
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-
-                        // read the pixel   
-                        int[] pixel = new int[1];
-                        raster.getPixel(col, row, pixel);
-                        int gray = pixel[0];  
-                        
-                        // compute the new phase
-                        Double newPhase = phasePerStripe*closestIndex(gray, levelSet);
-
-                        // store the new phase
-                        if (orientation.equals("vertical")) {                            
-                            hPhaseMap[row][col] += newPhase;
-                        }
-                        else if (orientation.equals("horizontal")) {                            
-                            vPhaseMap[row][col] += newPhase;
+                RowBands.forEach(nRows, (rowStart, rowStop) -> {
+                    int[] rowPixels = new int[nCols];
+                    for (int row = rowStart; row < rowStop; row++) {
+                        raster.getSamples(0, row, nCols, 1, 0, rowPixels);
+                        double[] phaseRow = phaseMap[row];
+                        for (int col = 0; col < nCols; col++) {
+                            phaseRow[col] += phasePerStripe*stripeTable[rowPixels[col]];
                         }
                     }
-                }                                                
+                });
             }
 
             // found new wave frame
-            else if (phaseFrameConfig.selectSingleNode("type").getText().equals("wave")) {  
+            else if (frameTypes[i].equals("wave")) {  
 
                 // Update the wave buffers
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-
-                        // read the pixel   
-                        int[] pixel = new int[1];
-                        raster.getPixel(col, row, pixel);
-                        int gray = pixel[0];
-
-                        // Store Wave Frame Pixels                          
-                        waveBuffer[row][col][waveIndex] = (double) gray; 
+                int currentWave = waveIndex;
+                RowBands.forEach(nRows, (rowStart, rowStop) -> {
+                    int[] rowPixels = new int[nCols];
+                    for (int row = rowStart; row < rowStop; row++) {
+                        raster.getSamples(0, row, nCols, 1, 0, rowPixels);
+                        for (int col = 0; col < nCols; col++) {
+
+                            // Store Wave Frame Pixels                          
+                            waveBuffer[row][col][currentWave] = (double) rowPixels[col]; 
+                        }
                     }
-                }
+                });
                 waveIndex += 1;
                 
                 // Check if its the last wave frame in the set
-                boolean isLastofSet = Boolean.parseBoolean(phaseFrameConfig.selectSingleNode("isLastofSet").getText());
-                if (isLastofSet == true) {                
+                if (isLastofSets[i]) {                
 
                     // Update the phase map
-                    String orientation = phaseFrameConfig.selectSingleNode("orientation").getText();
-                    for (int row = 0; row < nRows; row++) {
-                        for (int col = 0; col < nCols; col++) {                        
-                            double[] I = waveBuffer[row][col];
-                            double newPhase = Math.PI + FastMath.atan2((I[3] - I[1]),(I[2] - I[0]));  
-                            if (orientation.equals("vertical")) {
-                                hPhaseMap[row][col] += newPhase;
+                    double[][] phaseMap = selectPhaseMap(orientations[i], hPhaseMap, vPhaseMap);
+                    if (phaseMap != null) {
+                        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+                            for (int row = rowStart; row < rowStop; row++) {
+                                double[] phaseRow = phaseMap[row];
+                                for (int col = 0; col < nCols; col++) {                        
+                                    double[] I = waveBuffer[row][col];
+                                    phaseRow[col] += Math.PI + FastMath.atan2((I[3] - I[1]),(I[2] - I[0]));  
+                                }                        
                             }
-                            else if (orientation.equals("horizontal")) {                            
-                                vPhaseMap[row][col] += newPhase;
-                            }
-                        }                        
+                        });
                     }
                     waveIndex = 0;
                 }
@@ -147,24 +164,67 @@ public class PhaseMap_StripesAndWaves {
         // Export the phase data        
         System.out.println("Saving the phase maps data: Please Wait ...");
         
-        String horizPhaseMapDataFileName = e.selectSingleNode("/config/files/horizPhaseMapData").getText();
-        writeDoubleArray(hPhaseMap, phaseMapDirPath, horizPhaseMapDataFileName);
+        Node dataTypeNode = e.selectSingleNode("/config/phaseMap/binaryType");
+        int dataType = PhaseMapFile.parseDataType((dataTypeNode == null) ? "float64" : dataTypeNode.getText());
+        Node horizBinaryNode = e.selectSingleNode("/config/files/horizPhaseMapBinary");
+        String horizPhaseMapBinaryFileName = (horizBinaryNode == null) ? "horizPhaseMap.bin" : horizBinaryNode.getText();
+        PhaseMapFile.write(hPhaseMap, phaseMapDirPath, horizPhaseMapBinaryFileName, dataType, Double.NaN, new double[0]);
+        
+        Node vertBinaryNode = e.selectSingleNode("/config/files/vertPhaseMapBinary");
+        String vertPhaseMapBinaryFileName = (vertBinaryNode == null) ? "vertPhaseMap.bin" : vertBinaryNode.getText();
+        PhaseMapFile.write(vPhaseMap, phaseMapDirPath, vertPhaseMapBinaryFileName, dataType, Double.NaN, new double[0]);
+
+        // these maps come without a validity mask, so remove one left by an earlier run of PhaseMap_Waves
+        // before the later stages take it for a mask of these maps
+        Node maskNode = e.selectSingleNode("/config/files/validMask");
+        String maskFileName = (maskNode == null) ? "validMask.bin" : maskNode.getText();
+        File maskFile = new File(phaseMapDirPath + "\\" + maskFileName);
+        if (maskFile.exists() && !maskFile.delete()) {
+            throw new RuntimeException("Can't remove the stale mask: " + maskFile);
+        }
 
-        String vertPhaseMapDataFileName = e.selectSingleNode("/config/files/vertPhaseMapData").getText();
-        writeDoubleArray(vPhaseMap, phaseMapDirPath, vertPhaseMapDataFileName);
+        // the CSV copies are only for debugging
+        Node writeCSVNode = e.selectSingleNode("/config/phaseMap/writeCSV");
+        if (writeCSVNode != null && Boolean.parseBoolean(writeCSVNode.getText())) {
+            String horizPhaseMapDataFileName = e.selectSingleNode("/config/files/horizPhaseMapData").getText();
+            writeDoubleArray(hPhaseMap, phaseMapDirPath, horizPhaseMapDataFileName);
+
+            String vertPhaseMapDataFileName = e.selectSingleNode("/config/files/vertPhaseMapData").getText();
+            writeDoubleArray(vPhaseMap, phaseMapDirPath, vertPhaseMapDataFileName);
+        }
 
         // Draw the phase images
         System.out.println("Saving the phase maps image: Please Wait ...");
         
         String horizPhaseMapImageFileName = e.selectSingleNode("/config/files/horizPhaseMapImage").getText();
-        BufferedImage horizPhaseMapImage = drawDoubleArray(hPhaseMap);
-        saveImage(horizPhaseMapImage,phaseMapDirPath + "\\" + horizPhaseMapImageFileName);
+        PhasePreview.save(e, hPhaseMap, Double.NaN, phaseMapDirPath, horizPhaseMapImageFileName);
 
         String vertPhaseMapImageFileName = e.selectSingleNode("/config/files/vertPhaseMapImage").getText();
-        BufferedImage vertPhaseMapImage = drawDoubleArray(vPhaseMap);
-        saveImage(vertPhaseMapImage, phaseMapDirPath + "\\" + vertPhaseMapImageFileName);
+        PhasePreview.save(e, vPhaseMap, Double.NaN, phaseMapDirPath, vertPhaseMapImageFileName);
     }
                     
+    static double[][] selectPhaseMap(String orientation, double[][] hPhaseMap, double[][] vPhaseMap)
+    {
+        // vertical stripes and waves give the horizontal phase map, and horizontal ones the vertical one
+        if (orientation.equals("vertical")) {
+            return hPhaseMap;
+        }
+        if (orientation.equals("horizontal")) {
+            return vPhaseMap;
+        }
+        return null;
+    }
+
+    public static short[] buildStripeTable(List<Integer> levelSet)
+    {
+        // the stripe index of every 8-bit gray level, same as closestIndex
+        short[] table = new short[256];
+        for (int gray = 0; gray < table.length; gray++) {
+            table[gray] = (short) closestIndex(gray, levelSet);
+        }
+        return table;
+    }
+
     public static int closestIndex(int value, List<Integer> in) {
         int min = Integer.MAX_VALUE;
         int closest = value;
@@ -201,117 +261,6 @@ public class PhaseMap_StripesAndWaves {
         }   
     }
     
-    public static double[][] normalizeDoubleArray(double[][] array){
-         // find the max
-        double max = computeDoubleArrayMax(array);
-
-        // divide all elements by the max
-        array = divideDoubleArray(array, max);
-
-        // find the min
-        double min = computeDoubleArrayMin(array);
-
-        // subtract all elements by the min
-        array = subtractDoubleArray(array, min);
-
-        // multiple all elements by 255
-        array = multiplyDoubleArray(array, 255.0);
-        
-        return array;
-    }
-
-    public static BufferedImage drawDoubleArray(double[][] array) {
-        int nRows = array.length;
-        int nCols = array[0].length;
-
-        array = normalizeDoubleArray(array);
-
-        BufferedImage saveImage = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
-        WritableRaster raster = saveImage.getRaster();
-        for(int row = 0; row < nRows; row++) {
-            for(int col = 0; col < nCols; col++) {
-                double pixel = array[row][col];
-                int[] pixelArray = new int[]{(int)pixel};
-                raster.setPixel(col, row, pixelArray);
-            }
-        }        
-        return saveImage;
-    }
-
-    public static double computeDoubleArrayMax(double[][] numbers) {
-        double maxValue = Double.MIN_VALUE;
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        int rowStart = 0;
-        int rowStop = nRows;
-        int colStart = 0;
-        int colStop = nCols;
-        for (int i = rowStart; i < rowStop; i++) {
-            for (int j = colStart; j < colStop; j++) {
-                if (numbers[i][j] > maxValue) {
-                    maxValue = numbers[i][j];
-                }
-            }
-        }
-        return maxValue;
-    }
-
-    public static double computeDoubleArrayMin(double[][] numbers) {
-        double minValue = Double.MAX_VALUE;
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        int rowStart = 0;
-        int rowStop = nRows;
-        int colStart = 0;
-        int colStop = nCols;
-        for (int i = rowStart; i < rowStop; i++) {
-            for (int j = colStart; j < colStop; j++) {
-                if (numbers[i][j] < minValue) {
-                    minValue = numbers[i][j];
-                }
-            }
-        }
-        return minValue;
-    }
-
-    public static double[][] divideDoubleArray(double[][] numbers, double factor) {
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                numbers[row][col] = (numbers[row][col] / factor);
-            }
-        }
-        return numbers;
-    }
-
-
-
-    public static double[][] subtractDoubleArray(double[][] numbers, double factor) {
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                numbers[row][col] = (numbers[row][col] - factor);
-            }
-        }
-        return numbers;
-    }
-
-    public static double[][] multiplyDoubleArray(double[][] numbers, double factor) {
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                numbers[row][col] = (numbers[row][col] * factor);
-            }
-        }
-        return numbers;
-    }
-    
     public static BufferedImage loadImage(String path){
         try {
             return ImageIO.read(new File(path));
@@ -5,14 +5,20 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import config.Util;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.math3.util.FastMath;
 import org.dom4j.Element;
 import org.dom4j.Node;
 
@@ -58,152 +64,112 @@ public class PhaseMap_Waves {
             throw new IllegalArgumentException("The number of images doesn't match the number of configuration entries");
         }
         
-        // accumulate the phase from each image
-        System.out.println("Computing the phase maps: Please Wait ...");
-        BufferedImage firstImage = loadImage(phaseFitFramesDirPath + "\\" + imageNames[0]);  
-        int nCols = firstImage.getWidth();
-        int nRows = firstImage.getHeight();
-        int nWaves = 4; // don't change this, its fixed by the phase formula
-        int nPhaseMaps = 2; // need to figure out how to generalize to multiples
-        double[][][] hPhaseMapStack = new double[nRows][nCols][nPhaseMaps];
-        double[][][] vPhaseMapStack = new double[nRows][nCols][nPhaseMaps];
-        int hPhaseMapIndex = 0;
-        int vPhaseMapIndex = 0;
-        double[] hPhaseMapWavelengths = new double[nPhaseMaps];
-        double[] vPhaseMapWavelengths = new double[nPhaseMaps];
-        double[][][] waveBuffer = new double[nRows][nCols][nWaves];
-        int waveIndex = 0;
-        List<Integer> calibLevels = Util.parseIntegerArray(root.selectSingleNode("/config/structuredLight/calibLevels").getText());
-        double minAmplitudeX = Double.parseDouble(root.selectSingleNode("/config/phaseMap/minAmplitudeX").getText());
-        double minAmplitudeY = Double.parseDouble(root.selectSingleNode("/config/phaseMap/minAmplitudeY").getText());
-        double nullPhase = Double.parseDouble(root.selectSingleNode("/config/phaseMap/nullPhase").getText());
-        for (int i = 0; i < phaseFrameConfigList.size(); i++) {
-            
-            System.out.println("Now analyzing image: " + i);
-            
-            // load the image
-            String name = imageNames[i];
-            BufferedImage image = loadImage(phaseFitFramesDirPath + "\\" + name);
-            WritableRaster raster = image.getRaster();
-
-            // get the image config
-            Node phaseFrameConfig = phaseFrameConfigList.get(i);           
-
-            // Update the wave buffers
-            for (int row = 0; row < nRows; row++) {
-                for (int col = 0; col < nCols; col++) {
-
-                    // read the pixel   
-                    int[] pixel = new int[1];
-                    raster.getPixel(col, row, pixel);
-                    int gray = pixel[0];
-
-                    // Store Wave Frame Pixels                          
-                    waveBuffer[row][col][waveIndex] = (double) gray; 
+        // find the wave sets: each ends at a frame marked isLastofSet, which also holds its orientation and wavelength;
+        // Gray-code frames stand alone and carry their own bit, code length and stripe width
+        int nFrames = phaseFrameConfigList.size();
+        int[] setSizes = new int[nFrames];
+        int[] setPositions = new int[nFrames];
+        String[] setOrientations = new String[nFrames];
+        double[] setWaveLengths = new double[nFrames];
+        int[] grayBits = new int[nFrames];
+        int[] grayLengths = new int[nFrames];
+        Arrays.fill(grayBits, -1);
+        int setStart = 0;
+        for (int i = 0; i < nFrames; i++) {
+            Node phaseFrameConfig = phaseFrameConfigList.get(i);
+            Node typeNode = phaseFrameConfig.selectSingleNode("type");
+            if (typeNode != null && typeNode.getText().equals("gray")) {
+                if (setStart != i) {
+                    throw new IllegalArgumentException("Gray-code frame " + i + " is inside a wave set");
                 }
+                grayBits[i] = Integer.parseInt(phaseFrameConfig.selectSingleNode("bit").getText());
+                grayLengths[i] = Integer.parseInt(phaseFrameConfig.selectSingleNode("nBits").getText());
+                setOrientations[i] = phaseFrameConfig.selectSingleNode("orientation").getText();
+                setWaveLengths[i] = Double.parseDouble(phaseFrameConfig.selectSingleNode("waveLength").getText());
+                setStart = i + 1;
             }
-            waveIndex += 1;
-
-            // Check if its the last wave frame in the set
-            boolean isLastofSet = Boolean.parseBoolean(phaseFrameConfig.selectSingleNode("isLastofSet").getText());
-            if (isLastofSet == true) {                
-
-                // Update the phase map
+            else if (Boolean.parseBoolean(phaseFrameConfig.selectSingleNode("isLastofSet").getText())) {
                 String orientation = phaseFrameConfig.selectSingleNode("orientation").getText();
-                double waveLength = Double.parseDouble(phaseFrameConfig.selectSingleNode("waveLength").getText());                
-                if (orientation.equals("vertical")) 
-                {
-                    hPhaseMapWavelengths[hPhaseMapIndex] = waveLength;
-                    for (int row = 0; row < nRows; row++)
-                    {
-                        for (int col = 0; col < nCols; col++)
-                        {                        
-                            double[] I = waveBuffer[row][col];
-                            double b = I[3] - I[1];
-                            double a = I[2] - I[0];
-                            double newPhase = Math.PI + FastMath.atan2(b,a);
-                            double newAmplitude = Math.sqrt(Math.pow(a, 2) + Math.pow(b, 2));
-                            
-                            if (newAmplitude >= minAmplitudeX)
-                            {
-                                hPhaseMapStack[row][col][hPhaseMapIndex] = newPhase;                                 
-                            }
-                            else
-                            {
-                                hPhaseMapStack[row][col][hPhaseMapIndex] = nullPhase;
-                            }
-                                                        
-                        }
-                    }
-                    hPhaseMapIndex += 1;
-                }
-                else if (orientation.equals("horizontal")) {  
-                    vPhaseMapWavelengths[vPhaseMapIndex] = waveLength;
-                    for (int row = 0; row < nRows; row++)
-                    {
-                        for (int col = 0; col < nCols; col++)
-                        {                        
-                            double[] I = waveBuffer[row][col];
-                            double b = I[3] - I[1];
-                            double a = I[2] - I[0];
-                            double newPhase = Math.PI + FastMath.atan2(b,a);
-                            double newAmplitude = Math.sqrt(Math.pow(a, 2) + Math.pow(b, 2));
-                            
-                            if (newAmplitude >= minAmplitudeY)
-                            {
-                                vPhaseMapStack[row][col][vPhaseMapIndex] = newPhase;
-                            }
-                            else
-                            {
-                                vPhaseMapStack[row][col][vPhaseMapIndex] = nullPhase;
-                            }
-                                                        
-                        }
-                    }
-                    vPhaseMapIndex += 1;
+                double waveLength = Double.parseDouble(phaseFrameConfig.selectSingleNode("waveLength").getText());
+                for (int j = setStart; j <= i; j++) {
+                    setSizes[j] = i - setStart + 1;
+                    setPositions[j] = j - setStart;
+                    setOrientations[j] = orientation;
+                    setWaveLengths[j] = waveLength;
                 }
-                waveIndex = 0;               
-            }                        
+                setStart = i + 1;
+            }
+        }
+        if (setStart != nFrames) {
+            throw new IllegalArgumentException("The last wave set is not marked with isLastofSet");
         }
         
-        // Compute the unwrapped phase maps        
-        double[][] hPhaseMap = new double[nRows][nCols];
-        double[][] vPhaseMap = new double[nRows][nCols];
-        for (int row = 0; row < nRows; row++)
-        {
-            for (int col = 0; col < nCols; col++)
-            {
-                // unwrap horizontal phase map
-                double hPhaseLow = hPhaseMapStack[row][col][0];
-                double hPhaseHigh = hPhaseMapStack[row][col][1];
-                if (hPhaseLow == nullPhase || hPhaseHigh == nullPhase)
-                {
-                    hPhaseMap[row][col] = nullPhase;
-                }
-                else
-                {
-                    double hWaveLengthLow = hPhaseMapWavelengths[0];                
-                    double hWaveLengthHigh = hPhaseMapWavelengths[1];
-                    double hPhaseOffset = Math.round(((hWaveLengthLow/hWaveLengthHigh)*hPhaseLow-hPhaseHigh)/(2*Math.PI));
-                    hPhaseMap[row][col] = hPhaseHigh + 2*Math.PI*hPhaseOffset;
-                }
-                
-                // unwrap vertical phase map
-                double vPhaseLow = vPhaseMapStack[row][col][0];
-                double vPhaseHigh = vPhaseMapStack[row][col][1];
-                if (vPhaseLow == nullPhase || vPhaseHigh == nullPhase)
-                {
-                    vPhaseMap[row][col] = nullPhase;
-                }
-                else
-                {
-                    double vWaveLengthLow = vPhaseMapWavelengths[0];                
-                    double vWaveLengthHigh = vPhaseMapWavelengths[1];
-                    double vPhaseOffset = Math.round(((vWaveLengthLow/vWaveLengthHigh)*vPhaseLow-vPhaseHigh)/(2*Math.PI));
-                    vPhaseMap[row][col] = vPhaseHigh + 2*Math.PI*vPhaseOffset;
-                }
+        // vertical waves give the horizontal phase map, and horizontal waves the vertical one
+        List<Integer> hFrames = new ArrayList<>();
+        List<Integer> vFrames = new ArrayList<>();
+        for (int i = 0; i < nFrames; i++) {
+            if (setOrientations[i].equals("vertical")) {
+                hFrames.add(i);
+            }
+            else if (setOrientations[i].equals("horizontal")) {
+                vFrames.add(i);
             }
-        }  
+            else {
+                System.out.println("Skipping image " + i + ", unknown orientation: " + setOrientations[i]);
+            }
+        }
+        
+        // accumulate the phase from each image, both orientations at once
+        System.out.println("Computing the phase maps: Please Wait ...");
+        String[] imagePaths = new String[nFrames];
+        for (int i = 0; i < nFrames; i++) {
+            imagePaths[i] = phaseFitFramesDirPath + "\\" + imageNames[i];
+        }
+        int[] imageSize = readImageSize(imagePaths[0]);
+        int nCols = imageSize[0];
+        int nRows = imageSize[1];
+        double minAmplitudeX = Double.parseDouble(root.selectSingleNode("/config/phaseMap/minAmplitudeX").getText());
+        double minAmplitudeY = Double.parseDouble(root.selectSingleNode("/config/phaseMap/minAmplitudeY").getText());
+        double nullPhase = Double.parseDouble(root.selectSingleNode("/config/phaseMap/nullPhase").getText());
+        PhaseEngine hEngine = new PhaseEngine(nRows, nCols, minAmplitudeX, nullPhase);
+        PhaseEngine vEngine = new PhaseEngine(nRows, nCols, minAmplitudeY, nullPhase);
+        Node minContrastNode = root.selectSingleNode("/config/phaseMap/minGrayContrast");
+        double minContrast = (minContrastNode == null) ? 0 : Double.parseDouble(minContrastNode.getText());
+        GrayCodeDecoder hDecoder = createDecoder(hFrames, grayBits, grayLengths, setWaveLengths, nRows, nCols, minContrast);
+        GrayCodeDecoder vDecoder = createDecoder(vFrames, grayBits, grayLengths, setWaveLengths, nRows, nCols, minContrast);
+
+        // decoder threads read ahead of each orientation, so decoding overlaps the accumulation
+        Node depthNode = root.selectSingleNode("/config/phaseMap/prefetchDepth");
+        int prefetchDepth = (depthNode == null) ? 4 : Integer.parseInt(depthNode.getText());
+        Node decodersNode = root.selectSingleNode("/config/phaseMap/decoderThreads");
+        int nDecoders = (decodersNode == null) ? 2 : Integer.parseInt(decodersNode.getText());
+        if (nDecoders < 1) {
+            throw new IllegalArgumentException("There must be at least one decoder thread");
+        }
+        ExecutorService decoders = Executors.newFixedThreadPool(nDecoders);
+        FramePrefetcher hPrefetcher = new FramePrefetcher(selectPaths(imagePaths, hFrames), decoders, prefetchDepth);
+        FramePrefetcher vPrefetcher = new FramePrefetcher(selectPaths(imagePaths, vFrames), decoders, prefetchDepth);
+        long startTime = System.nanoTime();
+        try {
+            ForkJoinTask.invokeAll(
+                ForkJoinTask.adapt(() -> accumulateFrames(hEngine, hDecoder, hFrames, hPrefetcher, setSizes, setPositions, setWaveLengths, grayBits)),
+                ForkJoinTask.adapt(() -> accumulateFrames(vEngine, vDecoder, vFrames, vPrefetcher, setSizes, setPositions, setWaveLengths, grayBits)));
+        }
+        finally {
+            hPrefetcher.cancel();
+            vPrefetcher.cancel();
+            decoders.shutdownNow();
+        }
+        System.out.printf("Phase extraction took %.2f s (prefetch depth %d, %d decoder threads): " +
+                          "%.2f s decoding, %.2f s waiting for frames%n",
+                          (System.nanoTime() - startTime)/1e9, prefetchDepth, nDecoders,
+                          hPrefetcher.getDecodeSeconds() + vPrefetcher.getDecodeSeconds(),
+                          hPrefetcher.getWaitSeconds() + vPrefetcher.getWaitSeconds());
+        if (hEngine.getSetCount() == 0 || vEngine.getSetCount() == 0) {
+            throw new IllegalArgumentException("There must be at least one wave set of each orientation");
+        }
+        double[][] hPhaseMap = hEngine.getPhaseMap();
+        double[][] vPhaseMap = vEngine.getPhaseMap();
 
         // Get the folder path
         String phaseMapDirPath = baseDirPath + "\\" +
@@ -212,28 +178,151 @@ public class PhaseMap_Waves {
         // Create folder if necessary
         createFolder(phaseMapDirPath); 
 
+        // find which pixels have a phase in both maps, so the later stages can skip the rest
+        ValidityMask mask = ValidityMask.fromPhaseMaps(hPhaseMap, vPhaseMap, hEngine.getModulation(), vEngine.getModulation(), nullPhase);
+        Node maskNode = root.selectSingleNode("/config/files/validMask");
+        String maskFileName = (maskNode == null) ? "validMask.bin" : maskNode.getText();
+        mask.write(phaseMapDirPath, maskFileName);
+        System.out.println("Valid pixels: " + mask.countValid() + " of " + nRows*nCols);
+
+        // optionally remove the speckle from the valid pixels
+        Node medianRadiusNode = root.selectSingleNode("/config/phaseMap/medianRadius");
+        int medianRadius = (medianRadiusNode == null) ? 0 : Integer.parseInt(medianRadiusNode.getText());
+        if (medianRadius > 0) {
+            System.out.println("Filtering the phase maps: Please Wait ...");
+            Node medianToleranceNode = root.selectSingleNode("/config/phaseMap/medianTolerance");
+            double medianTolerance = (medianToleranceNode == null) ? 0 : Double.parseDouble(medianToleranceNode.getText());
+            long filterStart = System.nanoTime();
+            hPhaseMap = PhaseFilter.median(hPhaseMap, mask, medianRadius, medianTolerance);
+            vPhaseMap = PhaseFilter.median(vPhaseMap, mask, medianRadius, medianTolerance);
+            System.out.printf("Median filtering took %.1f ms%n", (System.nanoTime() - filterStart)/1e6);
+        }
+
         // Export the phase data        
         System.out.println("Saving the phase maps data: Please Wait ...");
         
-        String horizPhaseMapDataFileName = root.selectSingleNode("/config/files/horizPhaseMapData").getText();
-        writeDoubleArray(hPhaseMap, phaseMapDirPath, horizPhaseMapDataFileName);
-
-        String vertPhaseMapDataFileName = root.selectSingleNode("/config/files/vertPhaseMapData").getText();
-        writeDoubleArray(vPhaseMap, phaseMapDirPath, vertPhaseMapDataFileName);
+        Node dataTypeNode = root.selectSingleNode("/config/phaseMap/binaryType");
+        int dataType = PhaseMapFile.parseDataType((dataTypeNode == null) ? "float64" : dataTypeNode.getText());
+        Node horizBinaryNode = root.selectSingleNode("/config/files/horizPhaseMapBinary");
+        String horizPhaseMapBinaryFileName = (horizBinaryNode == null) ? "horizPhaseMap.bin" : horizBinaryNode.getText();
+        PhaseMapFile.write(hPhaseMap, phaseMapDirPath, horizPhaseMapBinaryFileName, dataType, nullPhase, hEngine.getWaveLengths());
+        
+        Node vertBinaryNode = root.selectSingleNode("/config/files/vertPhaseMapBinary");
+        String vertPhaseMapBinaryFileName = (vertBinaryNode == null) ? "vertPhaseMap.bin" : vertBinaryNode.getText();
+        PhaseMapFile.write(vPhaseMap, phaseMapDirPath, vertPhaseMapBinaryFileName, dataType, nullPhase, vEngine.getWaveLengths());
+
+        // the CSV copies are only for debugging
+        Node writeCSVNode = root.selectSingleNode("/config/phaseMap/writeCSV");
+        if (writeCSVNode != null && Boolean.parseBoolean(writeCSVNode.getText())) {
+            String horizPhaseMapDataFileName = root.selectSingleNode("/config/files/horizPhaseMapData").getText();
+            writeDoubleArray(hPhaseMap, phaseMapDirPath, horizPhaseMapDataFileName);
+
+            String vertPhaseMapDataFileName = root.selectSingleNode("/config/files/vertPhaseMapData").getText();
+            writeDoubleArray(vPhaseMap, phaseMapDirPath, vertPhaseMapDataFileName);
+        }
 
         // Draw the phase images
         System.out.println("Saving the phase maps image: Please Wait ...");
         
         String horizPhaseMapImageFileName = root.selectSingleNode("/config/files/horizPhaseMapImage").getText();
-        BufferedImage horizPhaseMapImage = drawDoubleArray(hPhaseMap);
-        saveImage(horizPhaseMapImage,phaseMapDirPath + "\\" + horizPhaseMapImageFileName);
+        PhasePreview.save(root, hPhaseMap, nullPhase, phaseMapDirPath, horizPhaseMapImageFileName);
 
         String vertPhaseMapImageFileName = root.selectSingleNode("/config/files/vertPhaseMapImage").getText();
-        BufferedImage vertPhaseMapImage = drawDoubleArray(vPhaseMap);
-        saveImage(vertPhaseMapImage, phaseMapDirPath + "\\" + vertPhaseMapImageFileName);
+        PhasePreview.save(root, vPhaseMap, nullPhase, phaseMapDirPath, vertPhaseMapImageFileName);
                      
     }          
                     
+    public static void accumulateFrames(PhaseEngine engine, GrayCodeDecoder decoder, List<Integer> frames, FramePrefetcher prefetcher,
+                                        int[] setSizes, int[] setPositions, double[] setWaveLengths, int[] grayBits)
+    {
+        for (int i: frames) {
+            System.out.println("Now analyzing image: " + i);
+            BufferedImage image = prefetcher.next();
+
+            // a Gray-code frame becomes one bit plane of the code
+            if (grayBits[i] >= 0) {
+                decoder.addFrame(image.getRaster(), grayBits[i]);
+                continue;
+            }
+            
+            // fold the image into the running sums of its set
+            if (setPositions[i] == 0) {
+                engine.startSet(setSizes[i]);
+            }
+            engine.addFrame(image.getRaster());
+            if (decoder != null) {
+                decoder.addReference(image.getRaster());
+            }
+
+            // and unwrap once the set is complete
+            if (setPositions[i] == setSizes[i] - 1) {
+                engine.finishSet(setWaveLengths[i]);
+            }
+        }
+
+        // the Gray code gives the period of every pixel of the finest set
+        if (decoder != null && engine.getSetCount() > 0) {
+            double[] waveLengths = engine.getWaveLengths();
+            if (waveLengths[waveLengths.length - 1] != decoder.getStripeWidth()) {
+                throw new IllegalArgumentException("The Gray-code stripe width must match the wavelength of the last wave set");
+            }
+            decoder.unwrap(engine.getPhaseMap(), engine.nullPhase);
+        }
+    }
+
+    static GrayCodeDecoder createDecoder(List<Integer> frames, int[] grayBits, int[] grayLengths, double[] setWaveLengths,
+                                         int nRows, int nCols, double minContrast)
+    {
+        // one decoder per orientation that has Gray-code frames, all of the same code
+        GrayCodeDecoder decoder = null;
+        for (int i: frames) {
+            if (grayBits[i] < 0) {
+                continue;
+            }
+            if (decoder == null) {
+                decoder = new GrayCodeDecoder(nRows, nCols, grayLengths[i], setWaveLengths[i], minContrast);
+            }
+            else if (grayLengths[i] != decoder.nBits || setWaveLengths[i] != decoder.getStripeWidth()) {
+                throw new IllegalArgumentException("The Gray-code frames of one orientation must share nBits and waveLength");
+            }
+        }
+        return decoder;
+    }
+
+    static List<String> selectPaths(String[] imagePaths, List<Integer> frames)
+    {
+        List<String> paths = new ArrayList<>(frames.size());
+        for (int i: frames) {
+            paths.add(imagePaths[i]);
+        }
+        return paths;
+    }
+
+    public static int[] readImageSize(String path)
+    {
+        // only the header is read, the pixels are decoded later by the prefetchers
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new File(path))) {
+            Iterator<ImageReader> readers = (stream == null) ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new RuntimeException("Can't open the images");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        catch (IOException exp) {
+            for (StackTraceElement elem: exp.getStackTrace()) {
+                System.out.println(elem);
+            }
+            throw new RuntimeException("Can't open the images");
+        }
+    }
+                    
     public static int closestIndex(int value, List<Integer> in) {
         int min = Integer.MAX_VALUE;
         int closest = value;
@@ -270,117 +359,6 @@ public class PhaseMap_Waves {
         }   
     }
     
-    public static double[][] normalizeDoubleArray(double[][] array){
-         // find the max
-        double max = computeDoubleArrayMax(array);
-
-        // divide all elements by the max
-        array = divideDoubleArray(array, max);
-
-        // find the min
-        double min = computeDoubleArrayMin(array);
-
-        // subtract all elements by the min
-        array = subtractDoubleArray(array, min);
-
-        // multiple all elements by 255
-        array = multiplyDoubleArray(array, 255.0);
-        
-        return array;
-    }
-
-    public static BufferedImage drawDoubleArray(double[][] array) {
-        int nRows = array.length;
-        int nCols = array[0].length;
-
-        array = normalizeDoubleArray(array);
-
-        BufferedImage saveImage = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
-        WritableRaster raster = saveImage.getRaster();
-        for(int row = 0; row < nRows; row++) {
-            for(int col = 0; col < nCols; col++) {
-                double pixel = array[row][col];
-                int[] pixelArray = new int[]{(int)pixel};
-                raster.setPixel(col, row, pixelArray);
-            }
-        }        
-        return saveImage;
-    }
-
-    public static double computeDoubleArrayMax(double[][] numbers) {
-        double maxValue = Double.MIN_VALUE;
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        int rowStart = 0;
-        int rowStop = nRows;
-        int colStart = 0;
-        int colStop = nCols;
-        for (int i = rowStart; i < rowStop; i++) {
-            for (int j = colStart; j < colStop; j++) {
-                if (numbers[i][j] > maxValue) {
-                    maxValue = numbers[i][j];
-                }
-            }
-        }
-        return maxValue;
-    }
-
-    public static double computeDoubleArrayMin(double[][] numbers) {
-        double minValue = Double.MAX_VALUE;
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        int rowStart = 0;
-        int rowStop = nRows;
-        int colStart = 0;
-        int colStop = nCols;
-        for (int i = rowStart; i < rowStop; i++) {
-            for (int j = colStart; j < colStop; j++) {
-                if (numbers[i][j] < minValue) {
-                    minValue = numbers[i][j];
-                }
-            }
-        }
-        return minValue;
-    }
-
-    public static double[][] divideDoubleArray(double[][] numbers, double factor) {
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                numbers[row][col] = (numbers[row][col] / factor);
-            }
-        }
-        return numbers;
-    }
-
-
-
-    public static double[][] subtractDoubleArray(double[][] numbers, double factor) {
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                numbers[row][col] = (numbers[row][col] - factor);
-            }
-        }
-        return numbers;
-    }
-
-    public static double[][] multiplyDoubleArray(double[][] numbers, double factor) {
-        int nRows = numbers.length;
-        int nCols = numbers[0].length;
-        
-        for (int row = 0; row < nRows; row++) {
-            for (int col = 0; col < nCols; col++) {
-                numbers[row][col] = (numbers[row][col] * factor);
-            }
-        }
-        return numbers;
-    }
-    
     public static BufferedImage loadImage(String path){
         try {
             return ImageIO.read(new File(path));
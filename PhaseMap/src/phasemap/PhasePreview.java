@@ -0,0 +1,88 @@
+package phasemap;
+
+import config.RowBands;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+public class PhasePreview {
+
+    // renders a phase map as an 8-bit gray image without touching the map: one pass for the range
+    // of the valid pixels, one pass straight into the image bytes, optionally keeping only every
+    // scale-th pixel of every scale-th row
+
+    public static BufferedImage render(double[][] array, double nullPhase, int scale)
+    {
+        if (scale < 1) {
+            throw new IllegalArgumentException("The preview scale must be at least 1");
+        }
+        int nRows = (array.length + scale - 1)/scale;
+        int nCols = (array[0].length + scale - 1)/scale;
+
+        // the range of each preview row in parallel, then of the rows
+        double[] rowMins = new double[nRows];
+        double[] rowMaxs = new double[nRows];
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            for (int row = rowStart; row < rowStop; row++) {
+                double[] rowData = array[row*scale];
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int col = 0; col < nCols; col++) {
+                    double value = rowData[col*scale];
+                    if (isValid(value, nullPhase)) {
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                }
+                rowMins[row] = min;
+                rowMaxs[row] = max;
+            }
+        });
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int row = 0; row < nRows; row++) {
+            min = Math.min(min, rowMins[row]);
+            max = Math.max(max, rowMaxs[row]);
+        }
+
+        // null pixels stay black, and a flat map is drawn mid gray
+        double offset = min;
+        double gain = (max > min) ? 255.0/(max - min) : 0;
+        double base = (max > min) ? 0 : 128;
+        BufferedImage image = new BufferedImage(nCols, nRows, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = image.getRaster();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            for (int row = rowStart; row < rowStop; row++) {
+                double[] rowData = array[row*scale];
+                int pixel = row*nCols;
+                for (int col = 0; col < nCols; col++, pixel++) {
+                    double value = rowData[col*scale];
+                    if (isValid(value, nullPhase)) {
+                        data[pixel] = (byte) (int) (base + (value - offset)*gain);
+                    }
+                }
+            }
+        });
+        return image;
+    }
+
+    static boolean isValid(double value, double nullPhase) {
+        return value != nullPhase && !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    public static void save(Element root, double[][] array, double nullPhase, String folder, String fileName)
+    {
+        // batch runs can switch the previews off, they are only for looking at
+        Node writeNode = root.selectSingleNode("/config/phaseMap/writePreview");
+        if (writeNode != null && !Boolean.parseBoolean(writeNode.getText())) {
+            return;
+        }
+        Node scaleNode = root.selectSingleNode("/config/phaseMap/previewScale");
+        int scale = (scaleNode == null) ? 1 : Integer.parseInt(scaleNode.getText());
+        PhaseMap_Waves.saveImage(render(array, nullPhase, scale), folder + "\\" + fileName);
+    }
+
+}
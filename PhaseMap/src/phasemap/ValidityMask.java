@@ -0,0 +1,121 @@
+package phasemap;
+
+import config.RowBands;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class ValidityMask {
+
+    // one bit per pixel that has a phase in both maps, with each row padded to whole words so
+    // row bands never share a word, and the fringe modulation of every pixel
+    // binary file, little-endian:
+    //   int magic, int version, int nRows, int nCols, int wordsPerRow,
+    //   then nRows*wordsPerRow long words, then nRows*nCols float modulations
+    // CalibrationGridPoints.ValidityMask reads this format
+
+    static final int magic = 0x50484D4B; // "PHMK"
+    static final int version = 1;
+    static final int headerSize = 4*5;
+
+    int nRows;
+    int nCols;
+    int wordsPerRow;
+    long[] words;
+    float[] modulation;
+
+    public ValidityMask(int nRows, int nCols) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.wordsPerRow = (nCols + 63) >>> 6;
+        this.words = new long[nRows*wordsPerRow];
+        this.modulation = new float[nRows*nCols];
+    }
+
+    public boolean isValid(int row, int col) {
+        return (words[row*wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    public float getModulation(int row, int col) {
+        return modulation[row*nCols + col];
+    }
+
+    public int countValid()
+    {
+        int count = 0;
+        for (long word: words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public static ValidityMask fromPhaseMaps(double[][] hPhaseMap, double[][] vPhaseMap,
+                                             float[] hModulation, float[] vModulation, double nullPhase)
+    {
+        // a pixel is only usable when both orientations have a phase, and it is only as good as the weaker one
+        int nRows = hPhaseMap.length;
+        int nCols = hPhaseMap[0].length;
+        ValidityMask mask = new ValidityMask(nRows, nCols);
+        RowBands.forEach(nRows, (rowStart, rowStop) -> {
+            for (int row = rowStart; row < rowStop; row++) {
+                int pixel = row*nCols;
+                int wordStart = row*mask.wordsPerRow;
+                for (int col = 0; col < nCols; col++, pixel++) {
+                    mask.modulation[pixel] = Math.min(hModulation[pixel], vModulation[pixel]);
+                    if (!isNull(hPhaseMap[row][col], nullPhase) && !isNull(vPhaseMap[row][col], nullPhase)) {
+                        mask.words[wordStart + (col >>> 6)] |= 1L << col;
+                    }
+                }
+            }
+        });
+        return mask;
+    }
+
+    static boolean isNull(double phase, double nullPhase) {
+        return phase == nullPhase || (Double.isNaN(phase) && Double.isNaN(nullPhase));
+    }
+
+    public void write(String folder, String fileName)
+    {
+        // create the folder if necessary
+        PhaseMap_Waves.createFolder(folder);
+
+        String fullPath = folder + "\\" + fileName;
+        try (FileChannel channel = FileChannel.open(new File(fullPath).toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(magic);
+            header.putInt(version);
+            header.putInt(nRows);
+            header.putInt(nCols);
+            header.putInt(wordsPerRow);
+            header.flip();
+            PhaseMapFile.writeFully(channel, header);
+
+            // one row at a time through a reused direct buffer
+            ByteBuffer rowBuffer = ByteBuffer.allocateDirect(Math.max(8*wordsPerRow, 4*nCols)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int row = 0; row < nRows; row++) {
+                rowBuffer.clear();
+                rowBuffer.asLongBuffer().put(words, row*wordsPerRow, wordsPerRow);
+                rowBuffer.limit(8*wordsPerRow);
+                PhaseMapFile.writeFully(channel, rowBuffer);
+            }
+            for (int row = 0; row < nRows; row++) {
+                rowBuffer.clear();
+                rowBuffer.asFloatBuffer().put(modulation, row*nCols, nCols);
+                rowBuffer.limit(4*nCols);
+                PhaseMapFile.writeFully(channel, rowBuffer);
+            }
+        }
+        catch (IOException exp) {
+            for (StackTraceElement elem: exp.getStackTrace()) {
+                System.out.println(elem);
+            }
+            throw new RuntimeException("Can't write the mask");
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package videoframes;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class BrightnessEstimator {
+
+    // frames per fork-join task before it stops splitting
+    static final int framesPerTask = 4;
+
+    int subsampling;
+    int nHistBins;
+    ForkJoinPool pool;
+
+    public BrightnessEstimator(int subsampling, int nHistBins, int nThreads) {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("The brightness subsampling must be at least 1");
+        }
+        this.subsampling = subsampling;
+        this.nHistBins = nHistBins;
+        this.pool = new ForkJoinPool(nThreads);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public void estimate(List<File> frameFiles, double[] meansOut, int[][] histogramsOut)
+    {
+        pool.invoke(new EstimateTask(frameFiles, meansOut, histogramsOut, 0, frameFiles.size()));
+    }
+
+    public double estimate(File frameFile, int[] histogram)
+    {
+        BufferedImage frame = readSubsampled(frameFile);
+        return computeMean(frame.getRaster(), histogram);
+    }
+
+    public BufferedImage readSubsampled(File frameFile)
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream(frameFile)) {
+            if (in == null) {
+                throw new RuntimeException("Could not open the images");
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new RuntimeException("Could not open the images");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not open the images");
+        }
+    }
+
+    public static double computeMean(Raster raster, int[] histogram)
+    {
+        int nRows = raster.getHeight();
+        int nCols = raster.getWidth();
+        SampleModel sampleModel = raster.getSampleModel();
+
+        // read the first band straight from the byte buffer when we can
+        if (raster.getDataBuffer() instanceof DataBufferByte &&
+            sampleModel instanceof ComponentSampleModel &&
+            raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0)
+        {
+            DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            ComponentSampleModel componentModel = (ComponentSampleModel) sampleModel;
+            byte[] data = dataBuffer.getData(componentModel.getBankIndices()[0]);
+            int pixelStride = componentModel.getPixelStride();
+            int scanlineStride = componentModel.getScanlineStride();
+            int offset = dataBuffer.getOffsets()[componentModel.getBankIndices()[0]] +
+                         componentModel.getBandOffsets()[0];
+            return computeMean(data, offset, nRows, nCols, pixelStride, scanlineStride, 1, histogram);
+        }
+        // otherwise fall back to the raster accessors
+        long sum = 0;
+        for (int row = 0; row < nRows; row++) {
+            for (int col = 0; col < nCols; col++) {
+                int gray = raster.getSample(col, row, 0);
+                sum += gray;
+                if (histogram != null) {
+                    int bin = gray * histogram.length / 256;
+                    histogram[Math.min(bin, histogram.length - 1)] += 1;
+                }
+            }
+        }
+        return (double) sum / (nRows*nCols);
+    }
+
+    public static double computeMean(byte[] data, int offset, int nRows, int nCols,
+                                     int pixelStride, int scanlineStride, int step, int[] histogram)
+    {
+        // sum every step-th pixel of every step-th row
+        long sum = 0;
+        long n = 0;
+        for (int row = 0; row < nRows; row += step) {
+            int i = offset + row*scanlineStride;
+            for (int col = 0; col < nCols; col += step, i += step*pixelStride) {
+                int gray = data[i] & 0xFF;
+                sum += gray;
+                if (histogram != null) {
+                    histogram[gray * histogram.length / 256] += 1;
+                }
+            }
+            n += (nCols + step - 1)/step;
+        }
+        return (double) sum / n;
+    }
+
+    class EstimateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        List<File> frameFiles;
+        double[] meansOut;
+        int[][] histogramsOut;
+        int start;
+        int stop;
+
+        EstimateTask(List<File> frameFiles, double[] meansOut, int[][] histogramsOut, int start, int stop) {
+            this.frameFiles = frameFiles;
+            this.meansOut = meansOut;
+            this.histogramsOut = histogramsOut;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        @Override
+        protected void compute() {
+            if (stop - start <= framesPerTask) {
+                for (int i = start; i < stop; i++) {
+                    int[] histogram = (nHistBins > 0) ? new int[nHistBins] : null;
+                    meansOut[i] = estimate(frameFiles.get(i), histogram);
+                    histogramsOut[i] = histogram;
+                }
+                return;
+            }
+            int middle = (start + stop) >>> 1;
+            invokeAll(new EstimateTask(frameFiles, meansOut, histogramsOut, start, middle),
+                      new EstimateTask(frameFiles, meansOut, histogramsOut, middle, stop));
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package videoframes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BrightnessIndex {
+
+    static final int magic = 0x42494458; // "BIDX"
+    static final int version = 2;
+
+    int subsampling;
+    int nHistBins;
+    String[] names;
+    long[] sizes;
+    long[] modTimes;
+    double[] means;
+    int[][] histograms;
+
+    public BrightnessIndex(int subsampling, int nHistBins, int nFrames) {
+        this.subsampling = subsampling;
+        this.nHistBins = nHistBins;
+        this.names = new String[nFrames];
+        this.sizes = new long[nFrames];
+        this.modTimes = new long[nFrames];
+        this.means = new double[nFrames];
+        this.histograms = new int[nFrames][];
+    }
+
+    public double[] getMeans() {
+        return means;
+    }
+
+    public int[] getHistogram(int frameIndex) {
+        return histograms[frameIndex];
+    }
+
+    public static BrightnessIndex build(FrameSource source, BrightnessEstimator estimator,
+                                        BrightnessIndex previous)
+    {
+        // entries from the previous index that can be reused, keyed by frame name
+        Map<String,Integer> previousEntries = new HashMap<>();
+        if (previous != null &&
+            previous.subsampling == estimator.subsampling && previous.nHistBins == estimator.nHistBins) {
+            for (int i = 0; i < previous.names.length; i++) {
+                previousEntries.put(previous.names[i], i);
+            }
+        }
+
+        int nFrames = source.getFrameCount();
+        BrightnessIndex index = new BrightnessIndex(estimator.subsampling, estimator.nHistBins, nFrames);
+        List<Integer> staleIndices = new ArrayList<>();
+        for (int frameIndex = 0; frameIndex < nFrames; frameIndex++) {
+            index.names[frameIndex] = source.getFrameName(frameIndex);
+            index.sizes[frameIndex] = source.getFrameSize(frameIndex);
+            index.modTimes[frameIndex] = source.getFrameModTime(frameIndex);
+
+            // reuse the stored entry if the frame has not changed
+            Integer prev = previousEntries.get(index.names[frameIndex]);
+            if (prev != null &&
+                previous.sizes[prev] == index.sizes[frameIndex] &&
+                previous.modTimes[prev] == index.modTimes[frameIndex]) {
+                index.means[frameIndex] = previous.means[prev];
+                index.histograms[frameIndex] = previous.histograms[prev];
+            }
+            else {
+                staleIndices.add(frameIndex);
+            }
+        }
+
+        // otherwise read the frames
+        int nStale = staleIndices.size();
+        double[] staleMeans = new double[nStale];
+        int[][] staleHistograms = new int[nStale][];
+        source.computeMeans(estimator, staleIndices, staleMeans, staleHistograms);
+        for (int i = 0; i < nStale; i++) {
+            index.means[staleIndices.get(i)] = staleMeans[i];
+            index.histograms[staleIndices.get(i)] = staleHistograms[i];
+        }
+        System.out.println("Brightness index: " + (nFrames - nStale) + " frames reused, " +
+                           nStale + " frames read");
+        return index;
+    }
+
+    public boolean isUpToDate(FrameSource source)
+    {
+        if (source.getFrameCount() != names.length) {
+            return false;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (!source.getFrameName(i).equals(names[i]) ||
+                source.getFrameSize(i) != sizes[i] ||
+                source.getFrameModTime(i) != modTimes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static BrightnessIndex load(String path)
+    {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != magic || in.readInt() != version) {
+                System.out.println("Ignoring the brightness index, unknown format: " + path);
+                return null;
+            }
+            int subsampling = in.readInt();
+            int nHistBins = in.readInt();
+            int nFrames = in.readInt();
+            BrightnessIndex index = new BrightnessIndex(subsampling, nHistBins, nFrames);
+            for (int i = 0; i < nFrames; i++) {
+                index.names[i] = in.readUTF();
+                index.sizes[i] = in.readLong();
+                index.modTimes[i] = in.readLong();
+                index.means[i] = in.readDouble();
+                if (nHistBins > 0) {
+                    int[] histogram = new int[nHistBins];
+                    for (int bin = 0; bin < nHistBins; bin++) {
+                        histogram[bin] = in.readInt();
+                    }
+                    index.histograms[i] = histogram;
+                }
+            }
+            return index;
+        }
+        catch (IOException exp) {
+            System.out.println("Ignoring the brightness index, could not read it: " + path);
+            return null;
+        }
+    }
+
+    public void save(String path)
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(subsampling);
+            out.writeInt(nHistBins);
+            out.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                out.writeUTF(names[i]);
+                out.writeLong(sizes[i]);
+                out.writeLong(modTimes[i]);
+                out.writeDouble(means[i]);
+                if (nHistBins > 0) {
+                    for (int bin = 0; bin < nHistBins; bin++) {
+                        out.writeInt(histograms[i][bin]);
+                    }
+                }
+            }
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not save the brightness index");
+        }
+    }
+
+}
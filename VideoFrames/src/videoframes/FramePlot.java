@@ -10,11 +10,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import javax.swing.SwingUtilities;
 import org.dom4j.Element;
 import org.dom4j.Node;
 import org.jfree.chart.ChartFactory;
-import org.jfree.chart.ChartPanel;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PlotOrientation;
@@ -22,7 +20,6 @@ import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.jfree.data.xy.XYDataset;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
-import org.jfree.ui.ApplicationFrame;
 
 public class FramePlot {
     
@@ -54,13 +51,13 @@ public class FramePlot {
                              root.selectSingleNode("/config/folders/framePlot").getText();
         String framePlotDataName = root.selectSingleNode("/config/files/framePlotData").getText();
         String framePlotImageName = root.selectSingleNode("/config/files/framePlotImage").getText();
+        int height = Integer.parseInt(root.selectSingleNode("/config/frameSelection/framePlotHeight").getText());
+        int width = Integer.parseInt(root.selectSingleNode("/config/frameSelection/framePlotWidth").getText());
         
-        // read the plot dataset from file
+        // read the plot dataset from file, keeping about two points per pixel column
         File framePlotDataFile = new File(plotDirPath + "\\" + framePlotDataName);        
         XYSeriesCollection dataset = new XYSeriesCollection();
-        try {
-            FileReader fileReader = new FileReader(framePlotDataFile);
-            BufferedReader buffReader = new BufferedReader(fileReader);        
+        try (BufferedReader buffReader = new BufferedReader(new FileReader(framePlotDataFile))) {
             int nPlots = 4;
             for (int plotIndex = 0; plotIndex < nPlots; plotIndex++){
                 String plotName = buffReader.readLine();
@@ -68,12 +65,13 @@ public class FramePlot {
                 String[] xStrings = xStringLine.split(", ");
                 String yStringLine = buffReader.readLine();
                 String[] yStrings = yStringLine.split(", ");
-                XYSeries xySeries = new XYSeries(plotName);
+                double[] x = new double[xStrings.length];
+                double[] y = new double[yStrings.length];
                 for (int i = 0; i < xStrings.length; i++) {
-                    xySeries.add(Double.parseDouble(xStrings[i]),
-                                 Double.parseDouble(yStrings[i]));
+                    x[i] = Double.parseDouble(xStrings[i]);
+                    y[i] = Double.parseDouble(yStrings[i]);
                 }
-                dataset.addSeries(xySeries);            
+                dataset.addSeries(decimateSeries(plotName, x, y, width));            
             }
         }
         catch (FileNotFoundException exc) {
@@ -86,55 +84,25 @@ public class FramePlot {
             throw new RuntimeException("Can't parse lines form the plot data file. Maybe the file is empty?");
         } 
         
-        // generate the plot
-        int height = Integer.parseInt(root.selectSingleNode("/config/frameSelection/framePlotHeight").getText());
-        int width = Integer.parseInt(root.selectSingleNode("/config/frameSelection/framePlotWidth").getText());
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                FramePlotWindow framePlotWindow = new FramePlotWindow(dataset, width, height);
-                framePlotWindow.setup();
-                framePlotWindow.pack();
-                framePlotWindow.setVisible(true);
-                
-                // save the plot     
-                File savePlotFile = new File(plotDirPath + "\\" + framePlotImageName);
-                try {
-                    ChartUtilities.saveChartAsPNG(savePlotFile, framePlotWindow.chart, width, height); 
-                }
-                catch (IOException e) {
-                    throw new RuntimeException("Can't save the frame plot.");
-                }
-                
-                // discard the plot
-                framePlotWindow.dispose();
-            }
-        });
-    }
-}
-
-class FramePlotWindow extends ApplicationFrame {
-    
-    JFreeChart chart;
-    ChartPanel chartPanel;
-    int height;
-    int width;
-    
-    public FramePlotWindow(XYDataset dataset, int width, int height) {
-        super("Frame Plot");
-        this.chart = ChartFactory.createXYLineChart("Frame Mean Brightness" ,
-                                                    "Frame Number" ,
-                                                    "Frame Average Brightness" ,
-                                                    dataset ,
-                                                    PlotOrientation.VERTICAL ,
-                                                    true , true , false);
-        this.chartPanel = new ChartPanel(this.chart);       
-        this.width = width;
-        this.height = height;
+        // generate and save the plot offscreen, so no display is needed
+        JFreeChart chart = createChart(dataset);
+        File savePlotFile = new File(plotDirPath + "\\" + framePlotImageName);
+        try {
+            ChartUtilities.saveChartAsPNG(savePlotFile, chart, width, height); 
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Can't save the frame plot.");
+        }
     }
     
-    public void setup(){
-        this.chartPanel.setPreferredSize(new java.awt.Dimension(this.width, this.height));        
+    public static JFreeChart createChart(XYDataset dataset)
+    {
+        JFreeChart chart = ChartFactory.createXYLineChart("Frame Mean Brightness" ,
+                                                          "Frame Number" ,
+                                                          "Frame Average Brightness" ,
+                                                          dataset ,
+                                                          PlotOrientation.VERTICAL ,
+                                                          true , false , false);
         XYLineAndShapeRenderer renderer = new XYLineAndShapeRenderer();
         renderer.setSeriesPaint( 0 , Color.GREEN );
         renderer.setSeriesPaint( 1 , Color.RED );      
@@ -144,11 +112,43 @@ class FramePlotWindow extends ApplicationFrame {
         renderer.setSeriesStroke( 1 , new BasicStroke( 0.0f )  );      
         renderer.setSeriesStroke( 2 , new BasicStroke( 0.0f ) );
         renderer.setSeriesStroke( 3 , new BasicStroke( 1.0f ) );
-        this.chart.getXYPlot().setRenderer(renderer); 
-        setContentPane(this.chartPanel);
+        chart.getXYPlot().setRenderer(renderer); 
+        return chart;
     }
     
-    public void save(String path) { 
+    public static XYSeries decimateSeries(String name, double[] x, double[] y, int nBuckets)
+    {
+        // the points are already in frame order, so skip sorting and duplicate checks
+        XYSeries xySeries = new XYSeries(name, false, true);
+        int n = x.length;
+        if (n <= 2*nBuckets) {
+            for (int i = 0; i < n; i++) {
+                xySeries.add(x[i], y[i], false);
+            }
+            return xySeries;
+        }
         
-   }
+        // keep the min and max of each bucket, in their original order, so pulses survive
+        for (int bucket = 0; bucket < nBuckets; bucket++) {
+            int start = (int)((long)bucket*n/nBuckets);
+            int stop = (int)((long)(bucket + 1)*n/nBuckets);
+            int minIndex = start;
+            int maxIndex = start;
+            for (int i = start + 1; i < stop; i++) {
+                if (y[i] < y[minIndex]) {
+                    minIndex = i;
+                }
+                if (y[i] > y[maxIndex]) {
+                    maxIndex = i;
+                }
+            }
+            int first = Math.min(minIndex, maxIndex);
+            int second = Math.max(minIndex, maxIndex);
+            xySeries.add(x[first], y[first], false);
+            if (second != first) {
+                xySeries.add(x[second], y[second], false);
+            }
+        }
+        return xySeries;
+    }
 }
@@ -1,15 +1,12 @@
 package videoframes;
 
 import config.Util;
-import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import javax.imageio.ImageIO;
 import org.apache.commons.io.FileUtils;
 import org.dom4j.Element;
 import org.dom4j.Node;
@@ -42,85 +39,64 @@ public class FrameSelection {
     
     public final void selectFrames(Element root, String baseDirPath)
     {
-        // find the sync frames
-        System.out.println("Identifying the sync frames: Please Wait ...");
-        boolean pulseOn = false;
-        Integer pulseStartIndex = 0;
-        Integer pulseStopIndex = 0;
-        Integer nPulsesFound = 0;  
-        Integer nSyncPulses = Integer.parseInt(root.selectSingleNode("/config/structuredLight/nSyncPulses").getText());
-        ArrayList<Integer> pulseIndices = new ArrayList<>(nSyncPulses);
-        int syncFrameThresh = 100;
-        String captureFramesDirPath = baseDirPath + "\\" +
-                                      root.selectSingleNode("/config/folders/captureFrames").getText();
-        File captureFramesDir = new File(captureFramesDirPath);
-        String[] captureFrameNames = captureFramesDir.list();
+        // the capture source holds an open file, so close it however the selection ends
+        String captureFramesPath = baseDirPath + "\\" +
+                                   root.selectSingleNode("/config/folders/captureFrames").getText();
+        try (FrameSource captureFrames = FrameSource.open(captureFramesPath)) {
+            selectFrames(root, baseDirPath, captureFrames);
+        }
+    }
+    
+    final void selectFrames(Element root, String baseDirPath, FrameSource captureFrames)
+    {
+        // compute the average brightness of all frames, reading each frame once
+        System.out.println("Computing average brightness of all frames: Please Wait ...");
         
-        double frameAvgPrev = 0;
-        Integer frameIndex = 0;  
-        Integer nRows = Integer.parseInt(root.selectSingleNode("/config/structuredLight/nRows").getText());
-        Integer nCols = Integer.parseInt(root.selectSingleNode("/config/structuredLight/nCols").getText());
-        while (nPulsesFound < nSyncPulses) {
-                        
-            // lower the sync frame threshold if there are no more images to check
-            if (frameIndex >= captureFrameNames.length) {
-                // stop if the sync frame threshold does below 30
-                if (syncFrameThresh < 30)
-                {
-                    throw new IllegalArgumentException("Can't find the sync pulses");
-                }
-                else
-                {
-                    syncFrameThresh -= 10;
-                    frameIndex = 0;
-                    System.out.println("Sync frame threshold lowered to " + syncFrameThresh);
-                }
-            }
-            
-            // read the next frame
-            String name = captureFrameNames[frameIndex];
-            File newImageFile = new File(captureFramesDirPath + "\\" + name);
-            BufferedImage grayFrame;
+        // reuse the brightness index from a previous run where the frames have not changed
+        String plotDirPath = baseDirPath + "\\" +
+                             root.selectSingleNode("/config/folders/framePlot").getText();
+        Node indexNameNode = root.selectSingleNode("/config/files/brightnessIndex");
+        String indexName = (indexNameNode == null) ? "brightnessIndex.bin" : indexNameNode.getText();
+        Node histBinsNode = root.selectSingleNode("/config/frameSelection/brightnessHistogramBins");
+        int nHistBins = (histBinsNode == null) ? 0 : Integer.parseInt(histBinsNode.getText());
+        Node subsamplingNode = root.selectSingleNode("/config/frameSelection/brightnessSubsampling");
+        int subsampling = (subsamplingNode == null) ? 4 : Integer.parseInt(subsamplingNode.getText());
+        Node nThreadsNode = root.selectSingleNode("/config/frameSelection/nThreads");
+        int nThreads = (nThreadsNode == null) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(nThreadsNode.getText());
+        String indexPath = plotDirPath + "\\" + indexName;
+        BrightnessIndex brightnessIndex = BrightnessIndex.load(indexPath);
+        if (brightnessIndex == null || 
+            brightnessIndex.subsampling != subsampling || brightnessIndex.nHistBins != nHistBins ||
+            !brightnessIndex.isUpToDate(captureFrames)) {
+            BrightnessEstimator estimator = new BrightnessEstimator(subsampling, nHistBins, nThreads);
             try {
-                grayFrame = ImageIO.read(newImageFile);
-            }
-            catch (IOException exp) {
-                throw new RuntimeException("Could not open the image");
+                brightnessIndex = BrightnessIndex.build(captureFrames, estimator, brightnessIndex);
             }
-                       
-            // compute the average frame brightness
-            double frameAvg = 0;
-            Raster raster = grayFrame.getData();
-            for (int row = 0; row < nRows; row++) {
-                for (int col = 0; col < nCols; col++) {
-                    double[] newValueArray = new double[1];
-                    raster.getPixel(col, row, newValueArray);
-                    frameAvg += newValueArray[0];     
-                }
+            finally {
+                estimator.shutdown();
             }
-            frameAvg = frameAvg / (nRows*nCols);           
-            
-            // a pulse has begun
-            if (!pulseOn && (frameAvg - frameAvgPrev) > syncFrameThresh) {
-                pulseStartIndex = frameIndex;
-                pulseOn = true;
+            try {
+                FileUtils.forceMkdir(new File(plotDirPath));
             }
-            
-            // a pulse has ended
-            else if (pulseOn && (frameAvgPrev - frameAvg) > syncFrameThresh) {
-                pulseStopIndex = frameIndex - 1;
-                Integer pulseMiddleIndex = Math.round((pulseStartIndex + pulseStopIndex)/2.0f);
-                pulseIndices.add(pulseMiddleIndex);
-                pulseOn = false;
-                nPulsesFound += 1;
+            catch (IOException exp) {
+                throw new RuntimeException("Could not create the frame plot folder");
             }
-                
-            frameIndex += 1;
-            frameAvgPrev = frameAvg;
+            brightnessIndex.save(indexPath);
+        }
+        else {
+            System.out.println("Using the brightness index: " + indexPath);
         }
+        double[] frameAvgs = brightnessIndex.getMeans();
+        
+        // find the sync frames
+        System.out.println("Identifying the sync frames: Please Wait ...");
+        Integer nSyncPulses = Integer.parseInt(root.selectSingleNode("/config/structuredLight/nSyncPulses").getText());
+        List<Integer> pulseIndices = SyncDetector.findPulses(frameAvgs, nSyncPulses);
         
         // save the sync frames
         System.out.println("Saving sync frames: Please Wait ...");
+        Node extractionModeNode = root.selectSingleNode("/config/frameSelection/extractionMode");
+        String extractionMode = FrameSource.checkExtractionMode((extractionModeNode == null) ? "copy" : extractionModeNode.getText());
         String syncFramesDirPath =  baseDirPath + "\\" +
                                     root.selectSingleNode("/config/folders/syncFrames").getText();
         File syncFramesDir = new File(syncFramesDirPath);
@@ -129,11 +105,9 @@ public class FrameSelection {
                 FileUtils.forceMkdir(syncFramesDir);
             }
             for (Integer index: pulseIndices){
-                String name = captureFrameNames[index];            
-                BufferedImage frame = ImageIO.read(new File(captureFramesDirPath + "\\" + name));
                 String saveName = String.format("\\%03d.png", index);
                 File saveFile = new File(syncFramesDirPath + saveName);            
-                ImageIO.write(frame, "png", saveFile);            
+                captureFrames.extractFrame(index, saveFile, extractionMode);
             }
         }
         catch (IOException exp) {            
@@ -170,11 +144,9 @@ public class FrameSelection {
                 FileUtils.forceMkdir(calibFramesDir);
             }
             for (Integer index: calibFrameIndices){
-                String name = captureFrameNames[index];            
-                BufferedImage frame = ImageIO.read(new File(captureFramesDirPath + "\\" + name));
                 String saveName = String.format("%03d.png", index);
                 File saveFile = new File(calibFramesDirPath + "\\" + saveName);            
-                ImageIO.write(frame, "png", saveFile);            
+                captureFrames.extractFrame(index, saveFile, extractionMode);
             }
         }
         catch (IOException exp) {            
@@ -201,53 +173,25 @@ public class FrameSelection {
                 FileUtils.forceMkdir(phaseFramesDir);
             }
             for (Integer index: phaseFrameIndices){
-                String name = captureFrameNames[index];            
-                BufferedImage frame = ImageIO.read(new File(captureFramesDirPath + "\\" + name));
                 String saveName = String.format("%03d.png", index);
                 File saveFile = new File(phaseFramesDirPath + "\\" + saveName);            
-                ImageIO.write(frame, "png", saveFile);            
+                captureFrames.extractFrame(index, saveFile, extractionMode);
             }
         }
         catch (IOException exp) {            
             throw new RuntimeException("Could not save the phase frames");
         }
-        
-        // compute the average brighness of all frames
-        System.out.println("Computing average brightness of all frames: Please Wait ...");
-        ArrayList<Double> frameAvgList = new ArrayList<>();
-        ArrayList<Integer> frameIndexList = new ArrayList<>();
-        try {
-            for (Integer frameAvgIndex = 0;frameAvgIndex < captureFrameNames.length; frameAvgIndex++){
-                String name = captureFrameNames[frameAvgIndex];
-                BufferedImage frame = ImageIO.read(new File(captureFramesDirPath + "\\" + name));
-                double frameAvg = 0;
-                Raster raster = frame.getData();
-                for (int row = 0; row < nRows; row++) {
-                    for (int col = 0; col < nCols; col++) {
-                        double[] newValueArray = new double[1];
-                        raster.getPixel(col, row, newValueArray);
-                        frameAvg += newValueArray[0];     
-                    }
-                }
-                frameAvg = frameAvg / (nRows*nCols);
-                frameAvgList.add(frameAvg);
-                frameIndexList.add(frameAvgIndex);
-            }
-        }
-        catch (IOException exp) {            
-            throw new RuntimeException("Could not open the images");
-        }
-        
+
         // define plot data
         System.out.println("Defining plot data: Please Wait ...");
         
         // define plot set 1 data: mean frame brightness        
-        int n1 = frameIndexList.size();
+        int n1 = frameAvgs.length;
         ArrayList<Integer> x1 = new ArrayList<>(n1);
         ArrayList<Double> y1 = new ArrayList<>(n1);
         for (int x = pulseIndices.get(0) - 5; x < phaseFrameIndices.get(phaseFrameIndices.size() - 1) + 5; x++) {
           x1.add(x);
-          y1.add(frameAvgList.get(x));
+          y1.add(frameAvgs[x]);
         }
         // define plot set 2 data: pulse frames
         int n2 = pulseIndices.size();
@@ -255,7 +199,7 @@ public class FrameSelection {
         ArrayList<Double> y2 = new ArrayList<>(n2);
         for (int i = 0; i < n2; i++) {
           x2.add(pulseIndices.get(i));
-          y2.add(frameAvgList.get(pulseIndices.get(i)));
+          y2.add(frameAvgs[pulseIndices.get(i)]);
         }
         // define plot set 3 data: calibration frames
         int n3 = calibFrameIndices.size();
@@ -263,7 +207,7 @@ public class FrameSelection {
         ArrayList<Double> y3 = new ArrayList<>(n3);
         for (int i = 0; i < n3; i++) {
           x3.add(calibFrameIndices.get(i));
-          y3.add(frameAvgList.get(calibFrameIndices.get(i)));
+          y3.add(frameAvgs[calibFrameIndices.get(i)]);
         }
         // define plot set 4 data: phase frames
         int n4 = phaseFrameIndices.size();
@@ -271,13 +215,11 @@ public class FrameSelection {
         ArrayList<Double> y4 = new ArrayList<>(n3);
         for (int i = 0; i < n4; i++) {
           x4.add(phaseFrameIndices.get(i));
-          y4.add(frameAvgList.get(phaseFrameIndices.get(i)));
+          y4.add(frameAvgs[phaseFrameIndices.get(i)]);
         }
         
         // save plot data
         System.out.println("Saving plot data: Please Wait ...");
-        String plotDirPath = baseDirPath + "\\" +
-                             root.selectSingleNode("/config/folders/framePlot").getText();
         File plotDir = new File(plotDirPath);
         try {
             if (! plotDir.exists()){
@@ -0,0 +1,52 @@
+package videoframes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public interface FrameSource extends Closeable {
+
+    int getFrameCount();
+
+    String getFrameName(int frameIndex);
+
+    // used by the brightness index to tell if a frame has changed
+    long getFrameSize(int frameIndex);
+
+    long getFrameModTime(int frameIndex);
+
+    void computeMeans(BrightnessEstimator estimator, List<Integer> frameIndices,
+                      double[] meansOut, int[][] histogramsOut);
+
+    void extractFrame(int frameIndex, File saveFile, String mode) throws IOException;
+
+    @Override
+    void close();
+
+    static String checkExtractionMode(String mode)
+    {
+        // encode re-saves every frame as png, copy and link keep png captures byte for byte
+        if (!mode.equals("encode") && !mode.equals("copy") && !mode.equals("link")) {
+            throw new IllegalArgumentException("Unknown frame extraction mode: " + mode);
+        }
+        return mode;
+    }
+
+    static FrameSource open(String path)
+    {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            return new ImageFolderSource(path);
+        }
+        String lowerPath = path.toLowerCase();
+        if (lowerPath.endsWith(".y4m")) {
+            return new Y4MFrameSource(path);
+        }
+        else if (lowerPath.endsWith(".avi")) {
+            return new MjpegAviFrameSource(path);
+        }
+        throw new IllegalArgumentException("Can't read capture frames from: " + path);
+    }
+
+}
@@ -0,0 +1,115 @@
+package videoframes;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+public class ImageFolderSource implements FrameSource {
+
+    static final byte[] pngSignature = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    String dirPath;
+    String[] names;
+
+    public ImageFolderSource(String dirPath) {
+        this.dirPath = dirPath;
+        this.names = new File(dirPath).list();
+        if (this.names == null) {
+            throw new IllegalArgumentException("Can't list the capture frames in: " + dirPath);
+        }
+    }
+
+    public File getFrameFile(int frameIndex) {
+        return new File(dirPath + "\\" + names[frameIndex]);
+    }
+
+    @Override
+    public int getFrameCount() {
+        return names.length;
+    }
+
+    @Override
+    public String getFrameName(int frameIndex) {
+        return names[frameIndex];
+    }
+
+    @Override
+    public long getFrameSize(int frameIndex) {
+        return getFrameFile(frameIndex).length();
+    }
+
+    @Override
+    public long getFrameModTime(int frameIndex) {
+        return getFrameFile(frameIndex).lastModified();
+    }
+
+    @Override
+    public void computeMeans(BrightnessEstimator estimator, List<Integer> frameIndices,
+                             double[] meansOut, int[][] histogramsOut)
+    {
+        // independent files, so decode them in parallel
+        List<File> frameFiles = new ArrayList<>(frameIndices.size());
+        for (Integer frameIndex: frameIndices) {
+            frameFiles.add(getFrameFile(frameIndex));
+        }
+        estimator.estimate(frameFiles, meansOut, histogramsOut);
+    }
+
+    @Override
+    public void extractFrame(int frameIndex, File saveFile, String mode) throws IOException
+    {
+        FrameSource.checkExtractionMode(mode);
+        File sourceFile = getFrameFile(frameIndex);
+
+        // the saved frames are always png, so only re-encode if the capture is not
+        if (mode.equals("encode") || !isPNG(sourceFile)) {
+            BufferedImage frame = ImageIO.read(sourceFile);
+            ImageIO.write(frame, "png", saveFile);
+            return;
+        }
+
+        Path source = sourceFile.toPath();
+        Path target = saveFile.toPath();
+        if (mode.equals("link")) {
+            try {
+                Files.deleteIfExists(target);
+                Files.createLink(target, source);
+                return;
+            }
+            catch (IOException | UnsupportedOperationException exp) {
+                // different volumes or no hard link support, so copy instead
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public static boolean isPNG(File file) throws IOException
+    {
+        byte[] header = new byte[pngSignature.length];
+        try (InputStream in = new FileInputStream(file)) {
+            int nRead = 0;
+            while (nRead < header.length) {
+                int n = in.read(header, nRead, header.length - nRead);
+                if (n < 0) {
+                    return false;
+                }
+                nRead += n;
+            }
+        }
+        return Arrays.equals(header, pngSignature);
+    }
+
+}
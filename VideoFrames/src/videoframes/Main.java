@@ -1,8 +1,14 @@
 package videoframes;
 
+import javax.imageio.ImageIO;
+
 public class Main {
     
     public static void main(String[] args) {
+        // the frames are small enough to decode in memory, and the parallel brightness estimate
+        // would otherwise create a temporary cache file for every frame it decodes
+        ImageIO.setUseCache(false);
+        
         String configPath = "F:\\kdaquila_SoftwareDev\\2018_04_19_SurfaceReconstruction_Datasets\\Dataset9\\User\\Configuration.xml";
         FrameSelection frameExtraction = new FrameSelection(configPath);
         FramePlot framePlot = new FramePlot(configPath);       
@@ -0,0 +1,260 @@
+package videoframes;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+import javax.imageio.stream.ImageInputStream;
+
+public class MjpegAviFrameSource extends VideoFrameSource {
+
+    // the huffman tables that MJPEG frames are allowed to leave out
+    static final byte[] standardHuffmanSegment = buildHuffmanSegment();
+
+    ImageReader reader;
+    byte[] jpeg;
+    ByteBuffer jpegBuffer;
+    byte[] patchedJpeg;
+    int videoStream;
+
+    // dropped frames seen before the first image
+    int nLeadingDrops;
+
+    public MjpegAviFrameSource(String path) {
+        super(path);
+        this.videoStream = -1;
+        this.nLeadingDrops = 0;
+        try {
+            indexRiff();
+        }
+        catch (IOException exp) {
+            close();
+            throw new RuntimeException("Could not read the AVI video: " + path);
+        }
+        catch (RuntimeException exp) {
+            // a malformed header, the channel is still open
+            close();
+            throw exp;
+        }
+        if (nFrames == 0) {
+            close();
+            throw new IllegalArgumentException("No MJPEG frames found in: " + path);
+        }
+
+        // size the reusable buffers for the largest frame
+        int maxLength = 0;
+        for (int i = 0; i < nFrames; i++) {
+            maxLength = Math.max(maxLength, frameLengths[i]);
+        }
+        this.jpeg = new byte[maxLength];
+        this.jpegBuffer = ByteBuffer.wrap(jpeg);
+        this.patchedJpeg = new byte[maxLength + standardHuffmanSegment.length];
+
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+        if (!readers.hasNext()) {
+            throw new RuntimeException("No JPEG decoder is available");
+        }
+        this.reader = readers.next();
+        System.out.println("Found " + nFrames + " MJPEG frames in: " + path);
+    }
+
+    final void indexRiff() throws IOException
+    {
+        // OpenDML files continue with more RIFF AVIX chunks after the first RIFF AVI
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 12 <= fileSize) {
+            header.clear();
+            readFully(header, position);
+            String id = fourCC(header, 0);
+            long size = header.getInt(4) & 0xFFFFFFFFL;
+            String type = fourCC(header, 8);
+            if (!id.equals("RIFF") || !(type.equals("AVI ") || type.equals("AVIX"))) {
+                if (position == 0) {
+                    throw new IllegalArgumentException("Not an AVI video: " + file);
+                }
+                break;
+            }
+            indexList(position + 12, position + 8 + size, false);
+            position += 8 + size + (size & 1);
+        }
+    }
+
+    void indexList(long start, long stop, boolean inMovi) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        long position = start;
+        stop = Math.min(stop, fileSize);
+        while (position + 8 <= stop) {
+            header.clear();
+            header.limit((position + 12 <= stop) ? 12 : 8);
+            readFully(header, position);
+            String id = fourCC(header, 0);
+            long size = header.getInt(4) & 0xFFFFFFFFL;
+
+            if (id.equals("LIST") && header.limit() == 12) {
+                String type = fourCC(header, 8);
+                if (type.equals("movi") || type.equals("rec ")) {
+                    indexList(position + 12, position + 8 + size, inMovi || type.equals("movi"));
+                }
+            }
+            else if (inMovi && (id.endsWith("dc") || id.endsWith("db"))) {
+                // only keep the first video stream
+                int stream = Character.digit(id.charAt(0), 16)*16 + Character.digit(id.charAt(1), 16);
+                if (videoStream < 0) {
+                    videoStream = stream;
+                }
+                if (stream == videoStream) {
+                    addChunk(position + 8, (int) size);
+                }
+            }
+            position += 8 + size + (size & 1);
+        }
+    }
+
+    void addChunk(long offset, int length)
+    {
+        // capture writers mark a dropped frame with an empty chunk, which repeats the previous image
+        // so that the frames stay evenly spaced in time; drops before the first image show that image
+        if (length == 0) {
+            if (nFrames > 0) {
+                addFrame(frameOffsets[nFrames - 1], frameLengths[nFrames - 1]);
+            }
+            else {
+                nLeadingDrops += 1;
+            }
+            return;
+        }
+        for (; nLeadingDrops > 0; nLeadingDrops--) {
+            addFrame(offset, length);
+        }
+        addFrame(offset, length);
+    }
+
+    static String fourCC(ByteBuffer buffer, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (buffer.get(offset + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    ImageInputStream readJpeg(int frameIndex) throws IOException
+    {
+        int length = frameLengths[frameIndex];
+        jpegBuffer.clear();
+        jpegBuffer.limit(length);
+        readFully(jpegBuffer, frameOffsets[frameIndex]);
+
+        // splice in the standard huffman tables if the frame has none
+        byte[] data = jpeg;
+        int dataLength = length;
+        if (!hasHuffmanTables(jpeg, length)) {
+            System.arraycopy(jpeg, 0, patchedJpeg, 0, 2);
+            System.arraycopy(standardHuffmanSegment, 0, patchedJpeg, 2, standardHuffmanSegment.length);
+            System.arraycopy(jpeg, 2, patchedJpeg, 2 + standardHuffmanSegment.length, length - 2);
+            data = patchedJpeg;
+            dataLength = length + standardHuffmanSegment.length;
+        }
+        return ImageIO.createImageInputStream(new ByteArrayInputStream(data, 0, dataLength));
+    }
+
+    static boolean hasHuffmanTables(byte[] data, int length)
+    {
+        // walk the marker segments up to the start of scan
+        int i = 2;
+        while (i + 4 <= length) {
+            if ((data[i] & 0xFF) != 0xFF) {
+                return false;
+            }
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xC4) {
+                return true;
+            }
+            if (marker == 0xDA) {
+                return false;
+            }
+            int segmentLength = ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            i += 2 + segmentLength;
+        }
+        return false;
+    }
+
+    Raster readLumaRaster(int frameIndex, int subsampling) throws IOException
+    {
+        // the raw raster skips the color conversion, so band 0 is the luma
+        try (ImageInputStream in = readJpeg(frameIndex)) {
+            reader.setInput(in, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.readRaster(0, param);
+        }
+        finally {
+            reader.reset();
+        }
+    }
+
+    @Override
+    double computeMean(int frameIndex, int subsampling, int[] histogram) throws IOException
+    {
+        return BrightnessEstimator.computeMean(readLumaRaster(frameIndex, subsampling), histogram);
+    }
+
+    @Override
+    BufferedImage readGrayFrame(int frameIndex) throws IOException
+    {
+        Raster raster = readLumaRaster(frameIndex, 1);
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        int[] rowSamples = new int[width];
+        for (int row = 0; row < height; row++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + row, width, 1, 0, rowSamples);
+            frame.getRaster().setSamples(0, row, width, 1, 0, rowSamples);
+        }
+        return frame;
+    }
+
+    @Override
+    public void close() {
+        if (reader != null) {
+            reader.dispose();
+        }
+        super.close();
+    }
+
+    static byte[] buildHuffmanSegment()
+    {
+        JPEGHuffmanTable[] tables = {JPEGHuffmanTable.StdDCLuminance, JPEGHuffmanTable.StdACLuminance,
+                                     JPEGHuffmanTable.StdDCChrominance, JPEGHuffmanTable.StdACChrominance};
+        int[] tableIds = {0x00, 0x10, 0x01, 0x11};
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int t = 0; t < tables.length; t++) {
+            body.write(tableIds[t]);
+            for (short length: tables[t].getLengths()) {
+                body.write(length);
+            }
+            for (short value: tables[t].getValues()) {
+                body.write(value);
+            }
+        }
+        byte[] bodyBytes = body.toByteArray();
+        int segmentLength = bodyBytes.length + 2;
+        byte[] segment = new byte[bodyBytes.length + 4];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) 0xC4;
+        segment[2] = (byte) (segmentLength >> 8);
+        segment[3] = (byte) segmentLength;
+        System.arraycopy(bodyBytes, 0, segment, 4, bodyBytes.length);
+        return segment;
+    }
+
+}
@@ -0,0 +1,102 @@
+package videoframes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SyncDetector {
+
+    // the legacy threshold schedule, tried after the estimated threshold
+    static final int maxSyncFrameThresh = 100;
+    static final int minSyncFrameThresh = 20;
+    static final int syncFrameThreshStep = 10;
+
+    public static List<Integer> findPulses(double[] frameAvgs, int nSyncPulses)
+    {
+        // collect the thresholds to try, best guess first
+        List<Double> thresholds = new ArrayList<>();
+        double estimatedThresh = estimateThreshold(frameAvgs, nSyncPulses);
+        if (!Double.isNaN(estimatedThresh)) {
+            thresholds.add(estimatedThresh);
+        }
+        for (int thresh = maxSyncFrameThresh; thresh >= minSyncFrameThresh; thresh -= syncFrameThreshStep) {
+            thresholds.add((double) thresh);
+        }
+
+        // scan the brightness profile, which is already in memory, with each threshold
+        for (double thresh: thresholds) {
+            List<Integer> pulseIndices = findPulsesAt(frameAvgs, nSyncPulses, thresh);
+            if (pulseIndices != null) {
+                System.out.println("Sync frame threshold is " + String.format("%.1f", thresh));
+                return pulseIndices;
+            }
+            System.out.println("Sync frame threshold " + String.format("%.1f", thresh) + " failed");
+        }
+
+        throw new IllegalArgumentException("Can't find the sync pulses");
+    }
+
+    public static List<Integer> findPulsesAt(double[] frameAvgs, int nSyncPulses, double syncFrameThresh)
+    {
+        boolean pulseOn = false;
+        int pulseStartIndex = 0;
+        List<Integer> pulseIndices = new ArrayList<>(nSyncPulses);
+        double frameAvgPrev = 0;
+        for (int frameIndex = 0; frameIndex < frameAvgs.length; frameIndex++) {
+            double frameAvg = frameAvgs[frameIndex];
+
+            // a pulse has begun
+            if (!pulseOn && (frameAvg - frameAvgPrev) > syncFrameThresh) {
+                pulseStartIndex = frameIndex;
+                pulseOn = true;
+            }
+
+            // a pulse has ended
+            else if (pulseOn && (frameAvgPrev - frameAvg) > syncFrameThresh) {
+                int pulseStopIndex = frameIndex - 1;
+                pulseIndices.add(Math.round((pulseStartIndex + pulseStopIndex)/2.0f));
+                pulseOn = false;
+                if (pulseIndices.size() == nSyncPulses) {
+                    return pulseIndices;
+                }
+            }
+
+            frameAvgPrev = frameAvg;
+        }
+
+        // not enough pulses at this threshold
+        return null;
+    }
+
+    public static double estimateThreshold(double[] frameAvgs, int nSyncPulses)
+    {
+        // the sync pulses are the largest rising steps in the profile, so put the
+        // threshold in the gap below the n-th largest rising step
+        int nFrames = frameAvgs.length;
+        if (nFrames < 2 || nSyncPulses < 1) {
+            return Double.NaN;
+        }
+        double[] steps = new double[nFrames];
+        steps[0] = frameAvgs[0];
+        for (int i = 1; i < nFrames; i++) {
+            steps[i] = frameAvgs[i] - frameAvgs[i-1];
+        }
+        Arrays.sort(steps);
+
+        // steps are sorted ascending, so the largest ones are at the end
+        int kth = nFrames - nSyncPulses;
+        if (kth < 1) {
+            return Double.NaN;
+        }
+        double stepAbove = steps[kth];
+        double stepBelow = Math.max(steps[kth - 1], 0);
+        double thresh = (stepAbove + stepBelow)/2;
+
+        // reject estimates that the legacy schedule would never have used
+        if (thresh < minSyncFrameThresh || stepAbove - stepBelow < syncFrameThreshStep) {
+            return Double.NaN;
+        }
+        return thresh;
+    }
+
+}
@@ -0,0 +1,123 @@
+package videoframes;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+public abstract class VideoFrameSource implements FrameSource {
+
+    File file;
+    FileChannel channel;
+    long fileSize;
+    long fileModTime;
+
+    // where each frame's data starts in the container, and how long it is
+    long[] frameOffsets;
+    int[] frameLengths;
+    int nFrames;
+
+    public VideoFrameSource(String path) {
+        this.file = new File(path);
+        this.fileSize = file.length();
+        this.fileModTime = file.lastModified();
+        this.frameOffsets = new long[1024];
+        this.frameLengths = new int[1024];
+        this.nFrames = 0;
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not open the capture video: " + path);
+        }
+    }
+
+    // the mean brightness of one frame, using every subsampling-th row and column
+    abstract double computeMean(int frameIndex, int subsampling, int[] histogram) throws IOException;
+
+    // the full resolution luma of one frame
+    abstract BufferedImage readGrayFrame(int frameIndex) throws IOException;
+
+    @Override
+    public int getFrameCount() {
+        return nFrames;
+    }
+
+    @Override
+    public String getFrameName(int frameIndex) {
+        return String.format("frame%06d", frameIndex);
+    }
+
+    @Override
+    public long getFrameSize(int frameIndex) {
+        return fileSize;
+    }
+
+    @Override
+    public long getFrameModTime(int frameIndex) {
+        return fileModTime;
+    }
+
+    @Override
+    public void computeMeans(BrightnessEstimator estimator, List<Integer> frameIndices,
+                             double[] meansOut, int[][] histogramsOut)
+    {
+        // one container, so stream through it in order with the reusable buffers
+        try {
+            for (int i = 0; i < frameIndices.size(); i++) {
+                int[] histogram = (estimator.nHistBins > 0) ? new int[estimator.nHistBins] : null;
+                meansOut[i] = computeMean(frameIndices.get(i), estimator.subsampling, histogram);
+                histogramsOut[i] = histogram;
+            }
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not read the capture video: " + file);
+        }
+    }
+
+    @Override
+    public void extractFrame(int frameIndex, File saveFile, String mode) throws IOException
+    {
+        // the frames only exist inside the container, so they always need encoding
+        ImageIO.write(readGrayFrame(frameIndex), "png", saveFile);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException exp) {
+            throw new RuntimeException("Could not close the capture video: " + file);
+        }
+    }
+
+    void addFrame(long offset, int length) {
+        if (nFrames == frameOffsets.length) {
+            long[] newOffsets = new long[2*nFrames];
+            int[] newLengths = new int[2*nFrames];
+            System.arraycopy(frameOffsets, 0, newOffsets, 0, nFrames);
+            System.arraycopy(frameLengths, 0, newLengths, 0, nFrames);
+            frameOffsets = newOffsets;
+            frameLengths = newLengths;
+        }
+        frameOffsets[nFrames] = offset;
+        frameLengths[nFrames] = length;
+        nFrames += 1;
+    }
+
+    void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of the capture video");
+            }
+            position += n;
+        }
+    }
+
+}
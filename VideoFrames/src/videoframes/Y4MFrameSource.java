@@ -0,0 +1,145 @@
+package videoframes;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Y4MFrameSource extends VideoFrameSource {
+
+    static final int maxHeaderLength = 1024;
+
+    int width;
+    int height;
+    int frameSize;
+    byte[] luma;
+    ByteBuffer lumaBuffer;
+
+    public Y4MFrameSource(String path) {
+        super(path);
+        try {
+            long position = readStreamHeader();
+            indexFrames(position);
+        }
+        catch (IOException exp) {
+            close();
+            throw new RuntimeException("Could not read the Y4M video: " + path);
+        }
+        catch (RuntimeException exp) {
+            // a malformed header, the channel is still open
+            close();
+            throw exp;
+        }
+        this.luma = new byte[width*height];
+        this.lumaBuffer = ByteBuffer.wrap(luma);
+        System.out.println("Found " + nFrames + " frames of " + width + "x" + height + " in: " + path);
+    }
+
+    final long readStreamHeader() throws IOException
+    {
+        String header = readLine(0);
+        String[] tokens = header.split(" ");
+        if (!tokens[0].equals("YUV4MPEG2")) {
+            throw new IllegalArgumentException("Not a Y4M video: " + file);
+        }
+
+        String colorSpace = "420";
+        for (String token: tokens) {
+            if (token.startsWith("W")) {
+                width = Integer.parseInt(token.substring(1));
+            }
+            else if (token.startsWith("H")) {
+                height = Integer.parseInt(token.substring(1));
+            }
+            else if (token.startsWith("C")) {
+                colorSpace = token.substring(1);
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("The Y4M header has no frame size: " + file);
+        }
+
+        // the luma plane comes first, followed by the chroma planes that we skip
+        int chromaSize;
+        if (colorSpace.equals("mono")) {
+            chromaSize = 0;
+        }
+        else if (colorSpace.equals("444")) {
+            chromaSize = 2*width*height;
+        }
+        else if (colorSpace.equals("422")) {
+            chromaSize = 2*((width + 1)/2)*height;
+        }
+        else if (colorSpace.equals("411")) {
+            chromaSize = 2*((width + 3)/4)*height;
+        }
+        else if (colorSpace.equals("420") || colorSpace.equals("420jpeg") || colorSpace.equals("420paldv") ||
+                 colorSpace.equals("420mpeg2")) {
+            // only the 8-bit 4:2:0 variants, the 420p10 style tags have wider samples
+            chromaSize = 2*((width + 1)/2)*((height + 1)/2);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported Y4M color space: " + colorSpace);
+        }
+        frameSize = width*height + chromaSize;
+
+        return header.length() + 1;
+    }
+
+    final void indexFrames(long position) throws IOException
+    {
+        while (position < fileSize) {
+            String frameHeader = readLine(position);
+            if (!frameHeader.startsWith("FRAME")) {
+                throw new IllegalArgumentException("Bad Y4M frame header at byte " + position + " of: " + file);
+            }
+            long dataOffset = position + frameHeader.length() + 1;
+
+            // stop at a truncated last frame
+            if (dataOffset + frameSize > fileSize) {
+                break;
+            }
+            addFrame(dataOffset, frameSize);
+            position = dataOffset + frameSize;
+        }
+    }
+
+    String readLine(long position) throws IOException
+    {
+        int length = (int) Math.min(maxHeaderLength, fileSize - position);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        byte[] bytes = buffer.array();
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                return new String(bytes, 0, i, StandardCharsets.US_ASCII);
+            }
+        }
+        throw new IllegalArgumentException("Could not find the end of a Y4M header line in: " + file);
+    }
+
+    void readLuma(int frameIndex) throws IOException
+    {
+        lumaBuffer.clear();
+        readFully(lumaBuffer, frameOffsets[frameIndex]);
+    }
+
+    @Override
+    double computeMean(int frameIndex, int subsampling, int[] histogram) throws IOException
+    {
+        readLuma(frameIndex);
+        return BrightnessEstimator.computeMean(luma, 0, height, width, 1, width, subsampling, histogram);
+    }
+
+    @Override
+    BufferedImage readGrayFrame(int frameIndex) throws IOException
+    {
+        readLuma(frameIndex);
+        BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] frameData = ((DataBufferByte) frame.getRaster().getDataBuffer()).getData();
+        System.arraycopy(luma, 0, frameData, 0, luma.length);
+        return frame;
+    }
+
+}
@@ -91,6 +91,36 @@ public class VideoMaker_Waves {
             Integer amplitude = Integer.parseInt(root.selectSingleNode("/config/structuredLight/waveAmplitude").getText());
             Integer offset = Integer.parseInt(root.selectSingleNode("/config/structuredLight/waveOffset").getText());
             for (Node frameNode: frameNodes) {
+
+                // Gray-code frames are binary stripes between the extremes of the waves
+                Node typeNode = frameNode.selectSingleNode("type");
+                if (typeNode != null && typeNode.getText().equals("gray")) {
+                    String orientation = frameNode.selectSingleNode("orientation").getText();
+                    int bit = Integer.parseInt(frameNode.selectSingleNode("bit").getText());
+                    int nBits = Integer.parseInt(frameNode.selectSingleNode("nBits").getText());
+                    double stripeWidth = Double.parseDouble(frameNode.selectSingleNode("waveLength").getText());
+                    int extent = orientation.equals("vertical") ? nCols : nRows;
+                    if ((1L << nBits)*stripeWidth < extent) {
+                        throw new IllegalArgumentException("A " + nBits + "-bit Gray code of " + stripeWidth + " pixel stripes can't cover " + extent + " pixels");
+                    }
+                    int[] levels = new int[extent];
+                    for (int position = 0; position < extent; position++) {
+                        levels[position] = (grayBit(position, stripeWidth, nBits, bit) == 1) ? offset + amplitude : offset - amplitude;
+                    }
+                    for (int row = 0; row < nRows; row++) {
+                        for (int col = 0; col < nCols; col++) {
+                            raster.setSample(col, row, 0, orientation.equals("vertical") ? levels[col] : levels[row]);
+                        }
+                    }
+
+                    // write the Gray-code images
+                    for (int repeat = 0; repeat < nFrameRepeats; repeat++) {
+                        newFile = new File(framesDir + "\\" + String.format("%03d", frameIndex) + ".png");
+                        ImageIO.write(newImage, "png", newFile);
+                        frameIndex += 1;
+                    }
+                    continue;
+                }
                 
                 // set parameters
                 Double phaseOffsetFactor = Double.parseDouble(frameNode.selectSingleNode("phaseOffsetFactor").getText());
@@ -154,4 +184,18 @@ public class VideoMaker_Waves {
             throw new RuntimeException("Could not write the images");
         }        
     }
+
+    public static int grayBit(int position, double stripeWidth, int nBits, int bit)
+    {
+        // bits 0 .. nBits-1 are the Gray code of the stripe index, most significant first, and bit nBits
+        // is the last bit of the Gray code of the half-width stripe index, whose edges fall mid-stripe;
+        // stripe edges sit where the phase of the waves wraps, at (position + 0.5)/stripeWidth
+        double t = (position + 0.5)/stripeWidth;
+        if (bit < nBits) {
+            int stripe = (int) Math.floor(t);
+            return ((stripe ^ (stripe >> 1)) >> (nBits - 1 - bit)) & 1;
+        }
+        int halfStripe = (int) Math.floor(2*t);
+        return (halfStripe ^ (halfStripe >> 1)) & 1;
+    }
 }